@@ -0,0 +1,34 @@
+package us.abaz.googlephotos.mediafinder;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Creating a {@link MediaFile} from a path string, as done for every line of a dead letter file and every
+ * discovered file
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class MediaFileBenchmark {
+    private static final int PATH_COUNT = 1024;
+    private static final String ROOT = File.separator + "photos";
+
+    private final String[] paths = new String[PATH_COUNT];
+    private int next = 0;
+
+    @Setup
+    public void createPaths() {
+        for (int i = 0; i < PATH_COUNT; i++) {
+            paths[i] = String.join(File.separator, ROOT, "2019", "Summer trip " + (i % 32), "day " + (i % 7), "IMG_" + i + ".jpg");
+        }
+    }
+
+    @Benchmark
+    public MediaFile fromPathString() {
+        next = (next + 1) & (PATH_COUNT - 1);
+        return MediaFile.fromPathString(ROOT, paths[next]);
+    }
+}
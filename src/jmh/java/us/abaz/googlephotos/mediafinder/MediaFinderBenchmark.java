@@ -0,0 +1,77 @@
+package us.abaz.googlephotos.mediafinder;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Discovery over synthetic trees - the trees are generated once per trial with empty files, so this measures
+ * directory listing and {@link MediaFile} creation rather than disk reads
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+public class MediaFinderBenchmark {
+    /**
+     * flat - 10k files in one directory, deep - 10k files spread over a 10 level chain of directories,
+     * large - 1M files in 1000 directories
+     */
+    @Param({"flat", "deep", "large"})
+    public String shape;
+
+    @Param({"1", "8"})
+    public int parallelism;
+
+    private Path root;
+    private GoogleSupportedMediaFinder mediaFinder;
+
+    @Setup(Level.Trial)
+    public void createTree() throws IOException {
+        root = Files.createTempDirectory("media-finder-benchmark");
+        switch (shape) {
+            case "flat":
+                createFiles(root, 10_000);
+                break;
+            case "deep":
+                Path dir = root;
+                for (int level = 0; level < 10; level++) {
+                    dir = dir.resolve("level" + level);
+                    createFiles(dir, 1_000);
+                }
+                break;
+            case "large":
+                for (int i = 0; i < 1_000; i++) {
+                    createFiles(root.resolve("album" + i), 1_000);
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown tree shape " + shape);
+        }
+        mediaFinder = new GoogleSupportedMediaFinder(true, true, parallelism);
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteTree() throws IOException {
+        FileUtils.deleteDirectory(root.toFile());
+    }
+
+    @Benchmark
+    public int findMediaFiles() {
+        return mediaFinder.findMediaFiles(root.toString()).size();
+    }
+
+    /**
+     * Creates a mix of supported files and files the finder skips
+     */
+    private static void createFiles(Path dir, int count) throws IOException {
+        Files.createDirectories(dir);
+        for (int i = 0; i < count; i++) {
+            String extension = i % 10 == 0 ? ".txt" : i % 3 == 0 ? ".MP4" : ".jpg";
+            Files.createFile(dir.resolve("IMG_" + i + extension));
+        }
+    }
+}
@@ -0,0 +1,41 @@
+package us.abaz.googlephotos.process;
+
+import org.openjdk.jmh.annotations.*;
+import us.abaz.googlephotos.metrics.UploadMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Recording completions from many threads at once, as the media item create workers do through
+ * {@link MediaItemManager#markMediaFileUploaded}
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Threads(8)
+public class CompletionJournalBenchmark {
+    private final AtomicInteger fileNumber = new AtomicInteger();
+    private File journalFile;
+    private CompletionJournal journal;
+
+    @Setup(Level.Trial)
+    public void openJournal() throws IOException {
+        journalFile = Files.createTempFile("completion-journal-benchmark", ".bin").toFile();
+        journal = new CompletionJournal(journalFile, new UploadMetrics());
+    }
+
+    @TearDown(Level.Trial)
+    public void closeJournal() throws IOException {
+        journal.close();
+        Files.deleteIfExists(journalFile.toPath());
+    }
+
+    @Benchmark
+    public void append() {
+        journal.append("/photos/2019/Summer trip/IMG_" + fileNumber.incrementAndGet() + ".jpg");
+    }
+}
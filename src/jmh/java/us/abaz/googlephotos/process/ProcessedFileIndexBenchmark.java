@@ -0,0 +1,98 @@
+package us.abaz.googlephotos.process;
+
+import org.apache.commons.io.FileUtils;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Resume cost - loading the processed file index and filtering the discovered files against it, as
+ * {@link MediaItemManager} does on startup
+ */
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@State(Scope.Benchmark)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+public class ProcessedFileIndexBenchmark {
+    // Files discovered by the walk that are checked against the index
+    private static final int DISCOVERED_FILES = 100_000;
+
+    @Param({"10000", "1000000", "10000000"})
+    public int processedEntries;
+
+    private File dir;
+    private File processedLog;
+    private File journalFile;
+    private File indexFile;
+    private List<String> discovered;
+
+    @Setup(Level.Trial)
+    public void writeProcessedLog() throws IOException {
+        dir = Files.createTempDirectory("processed-index-benchmark").toFile();
+        processedLog = new File(dir, "GooglePhotoAlbumUploader_processed.txt");
+        journalFile = new File(dir, "GooglePhotoAlbumUploader_journal.bin");
+        indexFile = new File(dir, "GooglePhotoAlbumUploader_processed.idx");
+        try (BufferedWriter writer = new BufferedWriter(new FileWriter(processedLog, StandardCharsets.UTF_8))) {
+            for (int i = 0; i < processedEntries; i++) {
+                writer.write(path(i));
+                writer.newLine();
+            }
+        }
+        // Half of the discovered files are already processed
+        discovered = new ArrayList<>(DISCOVERED_FILES);
+        for (int i = 0; i < DISCOVERED_FILES; i++) {
+            discovered.add(path(i % 2 == 0 ? i % processedEntries : processedEntries + i));
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void deleteFiles() throws IOException {
+        FileUtils.deleteDirectory(dir);
+    }
+
+    /**
+     * First run after an upgrade - the whole legacy log is read and the side file written
+     */
+    @Benchmark
+    public int migrateAndFilter(MigrationState state) throws IOException {
+        return filter(ProcessedFileIndex.load(processedLog, journalFile));
+    }
+
+    /**
+     * Every later run - the side file already covers the log and is mapped as is
+     */
+    @Benchmark
+    public int loadAndFilter() throws IOException {
+        return filter(ProcessedFileIndex.load(processedLog, journalFile));
+    }
+
+    private int filter(ProcessedFileIndex index) {
+        List<String> remaining = new ArrayList<>(discovered);
+        remaining.removeIf(index::contains);
+        return remaining.size();
+    }
+
+    private static String path(int i) {
+        return "/photos/" + (2000 + i % 20) + "/Album " + (i / 1000) + "/IMG_" + i + ".jpg";
+    }
+
+    /**
+     * Drops the side file before each migration so the log is indexed from scratch every time
+     */
+    @State(Scope.Thread)
+    public static class MigrationState {
+        @Setup(Level.Invocation)
+        public void deleteIndex(ProcessedFileIndexBenchmark benchmark) throws IOException {
+            Files.deleteIfExists(benchmark.indexFile.toPath());
+        }
+    }
+}
@@ -0,0 +1,26 @@
+package us.abaz.googlephotos.loadtest;
+
+import lombok.Builder;
+import lombok.Value;
+
+/**
+ * Behaviour of the {@link FakePhotosApi} - how slow it is and how often it fails
+ */
+@Value
+@Builder
+public class FakeApiSettings {
+    // Added to every call
+    @Builder.Default
+    long latencyMillis = 50;
+    // Shared by all uploads, 0 for unlimited
+    @Builder.Default
+    long bandwidthBytesPerSecond = 20L * 1024 * 1024;
+    // Per endpoint, 0 for unlimited.  Calls over the quota fail with RESOURCE_EXHAUSTED.
+    @Builder.Default
+    int quotaPerMinute = 0;
+    // Fraction of calls that fail with UNAVAILABLE, and of created media items that fail on their own
+    @Builder.Default
+    double failureRate = 0.01;
+    @Builder.Default
+    int albumPageSize = 50;
+}
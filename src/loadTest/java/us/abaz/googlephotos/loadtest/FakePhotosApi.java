@@ -0,0 +1,271 @@
+package us.abaz.googlephotos.loadtest;
+
+import com.google.api.core.ApiFuture;
+import com.google.api.core.ApiFutures;
+import com.google.api.gax.grpc.GrpcStatusCode;
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.ApiExceptionFactory;
+import com.google.common.util.concurrent.RateLimiter;
+import com.google.photos.library.v1.proto.BatchAddMediaItemsToAlbumResponse;
+import com.google.photos.library.v1.proto.BatchCreateMediaItemsRequest;
+import com.google.photos.library.v1.proto.BatchCreateMediaItemsResponse;
+import com.google.photos.library.v1.proto.ListAlbumsResponse;
+import com.google.photos.library.v1.proto.NewMediaItem;
+import com.google.photos.library.v1.proto.NewMediaItemResult;
+import com.google.photos.library.v1.upload.UploadMediaItemResponse;
+import com.google.photos.types.proto.Album;
+import com.google.photos.types.proto.MediaItem;
+import com.google.rpc.Code;
+import io.grpc.Status;
+import lombok.SneakyThrows;
+import us.abaz.googlephotos.api.PhotosApi;
+import us.abaz.googlephotos.ratelimit.ApiEndpoint;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Queue;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * In-process stand-in for the Google Photos Library API, for end to end runs without a network or a Google
+ * account.  Calls take a configurable latency, uploads share a bandwidth cap, each endpoint has a per minute
+ * quota answered with RESOURCE_EXHAUSTED like the real service, and a fraction of calls fail at random.
+ * Upload tokens, albums and media items are checked the way the real service checks them, so a token used
+ * twice, or adding an unknown media item or adding to an unknown album, fails.
+ */
+@SuppressWarnings("UnstableApiUsage")
+public class FakePhotosApi implements PhotosApi {
+    private static final int MAX_BATCH_SIZE = 50;
+    private static final String UPLOAD_URL_PREFIX = "fake://upload/";
+
+    private final FakeApiSettings settings;
+    private final RateLimiter bandwidthLimiter;
+    private final Map<ApiEndpoint, QuotaWindow> quotas = new EnumMap<>(ApiEndpoint.class);
+    private final Map<ApiEndpoint, EndpointStats> stats = new EnumMap<>(ApiEndpoint.class);
+    private final Map<String, Album> albumsById = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> uploadTokens = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> uploadUrls = new ConcurrentHashMap<>();
+    private final Map<String, Boolean> mediaItemIds = new ConcurrentHashMap<>();
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicLong mediaItemsCreated = new AtomicLong();
+    private final Queue<String> createdFileNames = new ConcurrentLinkedQueue<>();
+
+    public FakePhotosApi(FakeApiSettings settings) {
+        this.settings = settings;
+        this.bandwidthLimiter = settings.getBandwidthBytesPerSecond() > 0
+                ? RateLimiter.create(settings.getBandwidthBytesPerSecond())
+                : null;
+        for (ApiEndpoint endpoint : ApiEndpoint.values()) {
+            quotas.put(endpoint, new QuotaWindow(settings.getQuotaPerMinute()));
+            stats.put(endpoint, new EndpointStats());
+        }
+    }
+
+    @Override
+    public ApiFuture<UploadMediaItemResponse> uploadMediaItem(RandomAccessFile dataFile, String mimeType, int chunkSize, String uploadUrl) {
+        // Upload errors come back in the response rather than as an exception, the same as the real client
+        UploadMediaItemResponse.Error.Builder errorBuilder = UploadMediaItemResponse.Error.newBuilder()
+                .setResumeUrl(Optional.ofNullable(uploadUrl));
+        try {
+            beginCall(ApiEndpoint.UPLOAD_BYTES);
+            if (uploadUrl != null && !uploadUrls.containsKey(uploadUrl)) {
+                throw error(Status.Code.NOT_FOUND, "Unknown upload session " + uploadUrl, false);
+            }
+            receive(dataFile, chunkSize);
+            String uploadToken = UUID.randomUUID().toString();
+            uploadTokens.put(uploadToken, Boolean.TRUE);
+            if (uploadUrl != null) {
+                uploadUrls.remove(uploadUrl);
+            }
+            return ApiFutures.immediateFuture(UploadMediaItemResponse.newBuilder().setUploadToken(uploadToken).build());
+        } catch (ApiException e) {
+            return ApiFutures.immediateFuture(UploadMediaItemResponse.newBuilder().setError(errorBuilder.setCause(e).build()).build());
+        } catch (IOException e) {
+            return ApiFutures.immediateFailedFuture(e);
+        }
+    }
+
+    @Override
+    public String startResumableUpload(String fileName, long fileSize, String mimeType) {
+        String uploadUrl = UPLOAD_URL_PREFIX + UUID.randomUUID();
+        uploadUrls.put(uploadUrl, Boolean.TRUE);
+        return uploadUrl;
+    }
+
+    @Override
+    public BatchCreateMediaItemsResponse batchCreateMediaItems(BatchCreateMediaItemsRequest request) {
+        beginCall(ApiEndpoint.BATCH_CREATE);
+        if (request.getNewMediaItemsCount() > MAX_BATCH_SIZE) {
+            throw error(Status.Code.INVALID_ARGUMENT, "Too many media items in batch: " + request.getNewMediaItemsCount(), false);
+        }
+        if (!request.getAlbumId().isEmpty() && !albumsById.containsKey(request.getAlbumId())) {
+            throw error(Status.Code.NOT_FOUND, "Unknown album " + request.getAlbumId(), false);
+        }
+        BatchCreateMediaItemsResponse.Builder response = BatchCreateMediaItemsResponse.newBuilder();
+        for (NewMediaItem newMediaItem : request.getNewMediaItemsList()) {
+            String uploadToken = newMediaItem.getSimpleMediaItem().getUploadToken();
+            NewMediaItemResult.Builder result = NewMediaItemResult.newBuilder().setUploadToken(uploadToken);
+            if (ThreadLocalRandom.current().nextDouble() < settings.getFailureRate()) {
+                result.setStatus(com.google.rpc.Status.newBuilder().setCode(Code.INTERNAL_VALUE).setMessage("Simulated media item failure"));
+            } else if (uploadTokens.remove(uploadToken) == null) {
+                result.setStatus(com.google.rpc.Status.newBuilder().setCode(Code.INVALID_ARGUMENT_VALUE).setMessage("Unknown upload token"));
+            } else {
+                String mediaItemId = UUID.randomUUID().toString();
+                mediaItemIds.put(mediaItemId, Boolean.TRUE);
+                result.setStatus(com.google.rpc.Status.newBuilder().setCode(Code.OK_VALUE))
+                        .setMediaItem(MediaItem.newBuilder().setId(mediaItemId));
+                mediaItemsCreated.incrementAndGet();
+                createdFileNames.add(newMediaItem.getSimpleMediaItem().getFileName());
+            }
+            response.addNewMediaItemResults(result);
+        }
+        return response.build();
+    }
+
+    @Override
+    public BatchAddMediaItemsToAlbumResponse batchAddMediaItemsToAlbum(String albumId, List<String> mediaItemIds) {
+        beginCall(ApiEndpoint.ALBUM_ADD);
+        if (!albumsById.containsKey(albumId)) {
+            throw error(Status.Code.NOT_FOUND, "Unknown album " + albumId, false);
+        }
+        // The whole call fails if any one media item is unknown
+        for (String mediaItemId : mediaItemIds) {
+            if (!this.mediaItemIds.containsKey(mediaItemId)) {
+                throw error(Status.Code.INVALID_ARGUMENT, "Unknown media item " + mediaItemId, false);
+            }
+        }
+        return BatchAddMediaItemsToAlbumResponse.getDefaultInstance();
+    }
+
+    @Override
+    public Album createAlbum(String title) {
+        beginCall(ApiEndpoint.CREATE_ALBUM);
+        Album album = Album.newBuilder().setId(UUID.randomUUID().toString()).setTitle(title).build();
+        albumsById.put(album.getId(), album);
+        return album;
+    }
+
+    @Override
+    public ListAlbumsResponse listAlbums(String pageToken) {
+        beginCall(ApiEndpoint.LIST_ALBUMS);
+        List<Album> albums = new ArrayList<>(albumsById.values());
+        int start = pageToken.isEmpty() ? 0 : Integer.parseInt(pageToken);
+        int end = Math.min(albums.size(), start + settings.getAlbumPageSize());
+        ListAlbumsResponse.Builder response = ListAlbumsResponse.newBuilder().addAllAlbums(albums.subList(Math.min(start, end), end));
+        if (end < albums.size()) {
+            response.setNextPageToken(String.valueOf(end));
+        }
+        return response.build();
+    }
+
+    @Override
+    public void close() {
+    }
+
+    public long getBytesReceived() {
+        return bytesReceived.get();
+    }
+
+    public long getMediaItemsCreated() {
+        return mediaItemsCreated.get();
+    }
+
+    /**
+     * @return The file name of every media item created, once per creation - so a file uploaded twice shows twice
+     */
+    public List<String> getCreatedFileNames() {
+        return new ArrayList<>(createdFileNames);
+    }
+
+    public int getAlbumCount() {
+        return albumsById.size();
+    }
+
+    /**
+     * @return Calls, quota errors and simulated failures for each endpoint
+     */
+    public String describeStats() {
+        StringBuilder description = new StringBuilder();
+        stats.forEach((endpoint, endpointStats) -> description.append(String.format("%n  %-12s calls=%d quotaExceeded=%d failures=%d",
+                endpoint.getDisplayName(), endpointStats.calls.get(), endpointStats.quotaExceeded.get(), endpointStats.failures.get())));
+        return description.toString();
+    }
+
+    /**
+     * Charge a call against the endpoint quota, wait out the latency and maybe fail it
+     */
+    @SneakyThrows
+    private void beginCall(ApiEndpoint endpoint) {
+        EndpointStats endpointStats = stats.get(endpoint);
+        endpointStats.calls.incrementAndGet();
+        Thread.sleep(settings.getLatencyMillis());
+        if (!quotas.get(endpoint).tryAcquire()) {
+            endpointStats.quotaExceeded.incrementAndGet();
+            throw error(Status.Code.RESOURCE_EXHAUSTED, "Quota exceeded for " + endpoint.getDisplayName(), true);
+        }
+        if (ThreadLocalRandom.current().nextDouble() < settings.getFailureRate()) {
+            endpointStats.failures.incrementAndGet();
+            throw error(Status.Code.UNAVAILABLE, "Simulated failure of " + endpoint.getDisplayName(), true);
+        }
+    }
+
+    /**
+     * Read the whole file, a chunk at a time, at no more than the bandwidth cap
+     */
+    private void receive(RandomAccessFile dataFile, int chunkSize) throws IOException {
+        byte[] chunk = new byte[Math.max(1, chunkSize)];
+        dataFile.seek(0);
+        int read;
+        while ((read = dataFile.read(chunk)) > 0) {
+            if (bandwidthLimiter != null) {
+                bandwidthLimiter.acquire(read);
+            }
+            bytesReceived.addAndGet(read);
+        }
+    }
+
+    private static ApiException error(Status.Code code, String message, boolean retryable) {
+        return ApiExceptionFactory.createException(message, null, GrpcStatusCode.of(code), retryable);
+    }
+
+    /**
+     * Calls allowed in the current minute - a fixed window, which is close enough to how the real quotas behave
+     */
+    private static class QuotaWindow {
+        private final int perMinute;
+        private long windowStart = System.nanoTime();
+        private int count = 0;
+
+        QuotaWindow(int perMinute) {
+            this.perMinute = perMinute;
+        }
+
+        synchronized boolean tryAcquire() {
+            if (perMinute <= 0) {
+                return true;
+            }
+            long now = System.nanoTime();
+            if (now - windowStart >= TimeUnit.MINUTES.toNanos(1)) {
+                windowStart = now;
+                count = 0;
+            }
+            return ++count <= perMinute;
+        }
+    }
+
+    private static class EndpointStats {
+        private final AtomicLong calls = new AtomicLong();
+        private final AtomicLong quotaExceeded = new AtomicLong();
+        private final AtomicLong failures = new AtomicLong();
+    }
+}
@@ -0,0 +1,228 @@
+package us.abaz.googlephotos.loadtest;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.cli.*;
+import org.apache.commons.io.FileUtils;
+import us.abaz.googlephotos.process.SchedulingPolicy;
+import us.abaz.googlephotos.process.UploadManager;
+import us.abaz.googlephotos.util.PhotoUploadConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.function.Function;
+
+/**
+ * Offline end to end load test - generates a synthetic media tree, uploads all of it through the full upload
+ * pipeline to a {@link FakePhotosApi}, and reports the throughput along with what the fake saw.
+ * <p>
+ * With more than one shard, each shard of the tree is uploaded by its own JVM against its own fake, sharing the
+ * temporary storage like processes on separate hosts would, and the files created by all of them are checked for
+ * any uploaded twice.
+ */
+@Slf4j
+public class LoadTest {
+    // Enough of a JPEG header for the mime type sniffing to recognise the generated files
+    private static final byte[] JPEG_HEADER = {(byte) 0xFF, (byte) 0xD8, (byte) 0xFF, (byte) 0xE0};
+    private static final String CREATED_FILE_PREFIX = "created-";
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        Options options = new Options();
+        options.addOption(new Option("n", "files", true, "Number of files to generate"));
+        options.addOption(new Option("a", "albums", true, "Number of album directories the files are spread across"));
+        options.addOption(new Option("s", "fileSizeKb", true, "Size of each generated file in KB"));
+        options.addOption(new Option("le", "largeFileEvery", true, "Make every nth file a large video, 0 for none"));
+        options.addOption(new Option("ls", "largeFileSizeMb", true, "Size of each large video in MB"));
+        options.addOption(new Option("l", "latencyMillis", true, "Latency of each fake API call"));
+        options.addOption(new Option("b", "bandwidthMbps", true, "Upload bandwidth cap in MB per second, 0 for unlimited"));
+        options.addOption(new Option("q", "quotaPerMinute", true, "Calls allowed per endpoint per minute, 0 for unlimited"));
+        options.addOption(new Option("f", "failureRate", true, "Fraction of calls that fail"));
+        options.addOption(new Option("p", "parallelUploads", true, "Number of parallel uploads"));
+        options.addOption(new Option("bs", "batchSize", true, "Number of media items created per batch (max 50)"));
+        options.addOption(new Option("sp", "schedulingPolicy", true, "Upload order - FIFO, SIZE_BALANCED, SHORTEST_FIRST or ALBUM_AFFINITY"));
+        options.addOption(new Option("sd", "streamingDiscovery", false, "Start uploading while the tree is still being walked"));
+        options.addOption(new Option("sh", "shards", true, "Number of uploader JVMs the tree is split across"));
+        // Set by the parent when it starts the JVM for a shard
+        options.addOption(new Option("ws", "workerShard", true, "Shard uploaded by this worker JVM, as i/n"));
+        options.addOption(new Option("wd", "workDir", true, "Work directory shared with the other worker JVMs"));
+
+        CommandLine cmd;
+        try {
+            cmd = new DefaultParser().parse(options, args);
+        } catch (ParseException e) {
+            System.out.println(e.getMessage());
+            new HelpFormatter().printHelp("loadTest", options);
+            System.exit(1);
+            return;
+        }
+
+        int fileCount = getOption(cmd, "n", 500, Integer::parseInt);
+        int albumCount = getOption(cmd, "a", 10, Integer::parseInt);
+        int fileSizeKb = getOption(cmd, "s", 256, Integer::parseInt);
+        int largeFileEvery = getOption(cmd, "le", 0, Integer::parseInt);
+        int largeFileSizeMb = getOption(cmd, "ls", 64, Integer::parseInt);
+        FakeApiSettings settings = FakeApiSettings.builder()
+                .latencyMillis(getOption(cmd, "l", 50L, Long::parseLong))
+                .bandwidthBytesPerSecond(getOption(cmd, "b", 20L, Long::parseLong) * FileUtils.ONE_MB)
+                .quotaPerMinute(getOption(cmd, "q", 0, Integer::parseInt))
+                .failureRate(getOption(cmd, "f", 0.01, Double::parseDouble))
+                .build();
+
+        if (cmd.hasOption("ws")) {
+            runWorker(cmd, settings, Paths.get(cmd.getOptionValue("wd")), cmd.getOptionValue("ws"));
+            System.exit(0);
+        }
+
+        int shards = getOption(cmd, "sh", 1, Integer::parseInt);
+        Path workDir = Files.createTempDirectory("photos-loadtest");
+        try {
+            generateTree(workDir.resolve("media"), fileCount, albumCount, fileSizeKb * (int) FileUtils.ONE_KB,
+                    largeFileEvery, largeFileSizeMb * (int) FileUtils.ONE_MB);
+            if (shards > 1) {
+                long start = System.nanoTime();
+                runWorkers(args, workDir, shards);
+                reportShards(workDir, fileCount, (System.nanoTime() - start) / 1e9);
+            } else {
+                FakePhotosApi photosApi = new FakePhotosApi(settings);
+                double seconds = upload(cmd, settings, photosApi, workDir, 0, 1);
+                report(photosApi, fileCount, seconds);
+                reportDuplicates(photosApi.getCreatedFileNames());
+            }
+        } finally {
+            FileUtils.deleteDirectory(workDir.toFile());
+        }
+        System.exit(0);
+    }
+
+    /**
+     * Upload one shard of the tree in a work directory, in a worker JVM started by {@link #runWorkers}
+     */
+    private static void runWorker(CommandLine cmd, FakeApiSettings settings, Path workDir, String shard) throws IOException {
+        String[] shardFields = shard.split("/");
+        int shardIndex = Integer.parseInt(shardFields[0]) - 1;
+        FakePhotosApi photosApi = new FakePhotosApi(settings);
+        double seconds = upload(cmd, settings, photosApi, workDir, shardIndex, Integer.parseInt(shardFields[1]));
+        System.out.println(String.format("%nShard %s uploaded %d file(s) in %.1fs", shard, photosApi.getMediaItemsCreated(), seconds));
+        Files.write(workDir.resolve(CREATED_FILE_PREFIX + (shardIndex + 1) + ".txt"), photosApi.getCreatedFileNames(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Start a worker JVM per shard, each with the same settings, and wait for all of them
+     */
+    private static void runWorkers(String[] args, Path workDir, int shards) throws IOException, InterruptedException {
+        List<Process> workers = new ArrayList<>();
+        for (int shard = 1; shard <= shards; shard++) {
+            List<String> command = new ArrayList<>(Arrays.asList(
+                    Paths.get(System.getProperty("java.home"), "bin", "java").toString(),
+                    "-cp", System.getProperty("java.class.path"),
+                    LoadTest.class.getName()));
+            command.addAll(Arrays.asList(args));
+            command.addAll(Arrays.asList("--workerShard", shard + "/" + shards, "--workDir", workDir.toString()));
+            workers.add(new ProcessBuilder(command).inheritIO().start());
+        }
+        for (Process worker : workers) {
+            if (worker.waitFor() != 0) {
+                System.out.println("Worker exited with " + worker.exitValue());
+            }
+        }
+    }
+
+    /**
+     * Run the upload pipeline over the work directory's tree against a fake
+     *
+     * @return The seconds taken
+     */
+    private static double upload(CommandLine cmd, FakeApiSettings settings, FakePhotosApi photosApi, Path workDir,
+                                 int shardIndex, int shardCount) throws IOException {
+        Path tempStorage = Files.createDirectories(workDir.resolve("state"));
+        PhotoUploadConfig.PhotoUploadConfigBuilder configBuilder = PhotoUploadConfig.builder()
+                .searchRootDir(workDir.resolve("media").toString())
+                .tempStoragePath(tempStorage.toString() + File.separator)
+                .streamingDiscovery(cmd.hasOption("sd"))
+                .schedulingPolicy(SchedulingPolicy.valueOf(getOption(cmd, "sp", "FIFO", String::toUpperCase)))
+                .shardIndex(shardIndex)
+                .shardCount(shardCount);
+        if (cmd.hasOption("p")) {
+            configBuilder.maxParallelUploads(Integer.parseInt(cmd.getOptionValue("p")));
+        }
+        if (cmd.hasOption("bs")) {
+            configBuilder.batchSize(Integer.parseInt(cmd.getOptionValue("bs")));
+        }
+        PhotoUploadConfig config = configBuilder.build();
+        log.info("Load test settings are {}, upload config is {}", settings, config);
+
+        long start = System.nanoTime();
+        try (UploadManager uploadManager = new UploadManager(config, photosApi)) {
+            uploadManager.startUpload();
+        }
+        return (System.nanoTime() - start) / 1e9;
+    }
+
+    /**
+     * Write files of random content spread evenly over the album directories, with every nth file a large video
+     */
+    private static void generateTree(Path searchRoot, int fileCount, int albumCount, int fileSize,
+                                     int largeFileEvery, int largeFileSize) throws IOException {
+        System.out.println(String.format("Generating %d file(s) of %d KB in %d album(s) under %s",
+                fileCount, fileSize / FileUtils.ONE_KB, albumCount, searchRoot));
+        byte[] content = new byte[Math.max(fileSize, JPEG_HEADER.length)];
+        byte[] largeContent = largeFileEvery > 0 ? new byte[largeFileSize] : null;
+        for (int i = 0; i < fileCount; i++) {
+            Path albumDir = Files.createDirectories(searchRoot.resolve(String.format("Album_%03d", i % Math.max(1, albumCount))));
+            // Distinct content so deduplication, when enabled, has nothing to skip
+            if (largeContent != null && i % largeFileEvery == largeFileEvery - 1) {
+                ThreadLocalRandom.current().nextBytes(largeContent);
+                Files.write(albumDir.resolve(String.format("VID_%06d.mp4", i)), largeContent);
+            } else {
+                ThreadLocalRandom.current().nextBytes(content);
+                System.arraycopy(JPEG_HEADER, 0, content, 0, JPEG_HEADER.length);
+                Files.write(albumDir.resolve(String.format("IMG_%06d.jpg", i)), content);
+            }
+        }
+    }
+
+    private static void report(FakePhotosApi photosApi, int fileCount, double seconds) {
+        double megabytes = (double) photosApi.getBytesReceived() / FileUtils.ONE_MB;
+        System.out.println(String.format("%nLoad test complete in %.1fs", seconds));
+        System.out.println(String.format("  Media items created: %d of %d file(s) in %d album(s)",
+                photosApi.getMediaItemsCreated(), fileCount, photosApi.getAlbumCount()));
+        System.out.println(String.format("  Throughput: %.1f files/s, %.2f MB/s (%.1f MB received, including retries)",
+                photosApi.getMediaItemsCreated() / seconds, megabytes / seconds, megabytes));
+        System.out.println("  Fake API calls:" + photosApi.describeStats());
+    }
+
+    private static void reportShards(Path workDir, int fileCount, double seconds) throws IOException {
+        List<String> createdFileNames = new ArrayList<>();
+        try (DirectoryStream<Path> createdFiles = Files.newDirectoryStream(workDir, CREATED_FILE_PREFIX + "*.txt")) {
+            for (Path createdFile : createdFiles) {
+                createdFileNames.addAll(Files.readAllLines(createdFile, StandardCharsets.UTF_8));
+            }
+        }
+        System.out.println(String.format("%nSharded load test complete in %.1fs", seconds));
+        System.out.println(String.format("  Media items created: %d of %d file(s), %.1f files/s",
+                createdFileNames.size(), fileCount, createdFileNames.size() / seconds));
+        reportDuplicates(createdFileNames);
+    }
+
+    private static void reportDuplicates(List<String> createdFileNames) {
+        Map<String, Integer> creations = new HashMap<>();
+        createdFileNames.forEach(fileName -> creations.merge(fileName, 1, Integer::sum));
+        long duplicated = creations.values().stream().filter(count -> count > 1).count();
+        System.out.println(String.format("  Files uploaded more than once: %d", duplicated));
+    }
+
+    private static <T> T getOption(CommandLine cmd, String option, T defaultValue, Function<String, T> parser) {
+        String value = cmd.getOptionValue(option);
+        return value != null ? parser.apply(value) : defaultValue;
+    }
+}
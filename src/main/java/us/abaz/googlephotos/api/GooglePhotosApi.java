@@ -0,0 +1,120 @@
+package us.abaz.googlephotos.api;
+
+import com.google.api.core.ApiFuture;
+import com.google.auth.Credentials;
+import com.google.common.collect.ImmutableList;
+import com.google.photos.library.v1.PhotosLibraryClient;
+import com.google.photos.library.v1.PhotosLibrarySettings;
+import com.google.photos.library.v1.proto.BatchAddMediaItemsToAlbumResponse;
+import com.google.photos.library.v1.proto.BatchCreateMediaItemsRequest;
+import com.google.photos.library.v1.proto.BatchCreateMediaItemsResponse;
+import com.google.photos.library.v1.proto.ListAlbumsRequest;
+import com.google.photos.library.v1.proto.ListAlbumsResponse;
+import com.google.photos.library.v1.upload.UploadMediaItemRequest;
+import com.google.photos.library.v1.upload.UploadMediaItemResponse;
+import com.google.photos.types.proto.Album;
+import lombok.SneakyThrows;
+import org.apache.http.Header;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import us.abaz.googlephotos.util.PhotosLibraryClientFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.net.URI;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * {@link PhotosApi} backed by the Google Photos Library client.  The library sends each upload request over an
+ * HTTP connection of its own, so byte uploads never queue behind the album and media item calls on the client's
+ * gRPC channel, or behind each other.
+ */
+public class GooglePhotosApi implements PhotosApi {
+    private static final List<String> REQUIRED_SCOPES =
+            ImmutableList.of(
+                    "https://www.googleapis.com/auth/photoslibrary.readonly",
+                    "https://www.googleapis.com/auth/photoslibrary.appendonly");
+    private static final String UPLOAD_URL_HEADER = "X-Goog-Upload-URL";
+
+    private final PhotosLibraryClient photosLibraryClient;
+
+    public GooglePhotosApi(PhotosLibraryClient photosLibraryClient) {
+        this.photosLibraryClient = photosLibraryClient;
+    }
+
+    /**
+     * Create a client authorized with the credentials file - the first run authorizes interactively in a browser
+     */
+    @SneakyThrows
+    public static GooglePhotosApi create(String credFilePath) {
+        return new GooglePhotosApi(PhotosLibraryClientFactory.createClient(credFilePath, REQUIRED_SCOPES));
+    }
+
+    @Override
+    public ApiFuture<UploadMediaItemResponse> uploadMediaItem(RandomAccessFile dataFile, String mimeType, int chunkSize, String uploadUrl) {
+        UploadMediaItemRequest.Builder uploadRequestBuilder = UploadMediaItemRequest.newBuilder()
+                .setMimeType(mimeType)
+                .setChunkSize(chunkSize)
+                .setDataFile(dataFile);
+        if (uploadUrl != null) {
+            uploadRequestBuilder.setUploadUrl(uploadUrl);
+        }
+        return photosLibraryClient.uploadMediaItemCallable().futureCall(uploadRequestBuilder.build());
+    }
+
+    /**
+     * Started here rather than left to the upload callable so the caller can save the upload URL before any
+     * bytes are sent
+     */
+    @Override
+    public String startResumableUpload(String fileName, long fileSize, String mimeType) throws IOException {
+        String uploadEndpoint = PhotosLibrarySettings.getUploadEndpoint();
+        HttpPost startRequest = new HttpPost(uploadEndpoint);
+        Credentials credentials = photosLibraryClient.getSettings().getCredentialsProvider().getCredentials();
+        for (Map.Entry<String, List<String>> header : credentials.getRequestMetadata(URI.create(uploadEndpoint)).entrySet()) {
+            startRequest.addHeader(header.getKey(), String.join(",", header.getValue()));
+        }
+        startRequest.addHeader("X-Goog-Upload-Protocol", "resumable");
+        startRequest.addHeader("X-Goog-Upload-Command", "start");
+        startRequest.addHeader("X-Goog-Upload-Raw-Size", String.valueOf(fileSize));
+        startRequest.addHeader("X-Goog-Upload-Content-Type", mimeType);
+        startRequest.addHeader("X-Goog-Upload-File-Name", fileName);
+
+        try (CloseableHttpClient httpClient = HttpClients.createSystem();
+             CloseableHttpResponse response = httpClient.execute(startRequest)) {
+            Header uploadUrl = response.getFirstHeader(UPLOAD_URL_HEADER);
+            if (response.getStatusLine().getStatusCode() / 100 != 2 || uploadUrl == null) {
+                throw new IOException("Unable to start upload session for " + fileName + ": " + response.getStatusLine());
+            }
+            return uploadUrl.getValue();
+        }
+    }
+
+    @Override
+    public BatchCreateMediaItemsResponse batchCreateMediaItems(BatchCreateMediaItemsRequest request) {
+        return photosLibraryClient.batchCreateMediaItems(request);
+    }
+
+    @Override
+    public BatchAddMediaItemsToAlbumResponse batchAddMediaItemsToAlbum(String albumId, List<String> mediaItemIds) {
+        return photosLibraryClient.batchAddMediaItemsToAlbum(albumId, mediaItemIds);
+    }
+
+    @Override
+    public Album createAlbum(String title) {
+        return photosLibraryClient.createAlbum(title);
+    }
+
+    @Override
+    public ListAlbumsResponse listAlbums(String pageToken) {
+        return photosLibraryClient.listAlbumsCallable().call(ListAlbumsRequest.newBuilder().setPageToken(pageToken).build());
+    }
+
+    @Override
+    public void close() {
+        photosLibraryClient.close();
+    }
+}
@@ -0,0 +1,89 @@
+package us.abaz.googlephotos.api;
+
+import com.google.api.core.ApiFuture;
+import com.google.photos.library.v1.proto.BatchAddMediaItemsToAlbumResponse;
+import com.google.photos.library.v1.proto.BatchCreateMediaItemsRequest;
+import com.google.photos.library.v1.proto.BatchCreateMediaItemsResponse;
+import com.google.photos.library.v1.proto.ListAlbumsResponse;
+import com.google.photos.library.v1.upload.UploadMediaItemResponse;
+import com.google.photos.types.proto.Album;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+import java.util.function.Supplier;
+
+/**
+ * {@link PhotosApi} that only creates the API it calls on first use.  Loading credentials - possibly authorizing
+ * in a browser - and opening client connections is then left until there is something to upload, so a run that
+ * finds nothing new finishes without paying for either.
+ */
+@Slf4j
+public class LazyPhotosApi implements PhotosApi {
+    private final Supplier<PhotosApi> apiFactory;
+    private volatile PhotosApi api;
+    private boolean closed = false;
+
+    /**
+     * @param apiFactory Creates the API on the first call
+     */
+    public LazyPhotosApi(Supplier<PhotosApi> apiFactory) {
+        this.apiFactory = apiFactory;
+    }
+
+    @Override
+    public ApiFuture<UploadMediaItemResponse> uploadMediaItem(RandomAccessFile dataFile, String mimeType, int chunkSize, String uploadUrl) {
+        return getApi().uploadMediaItem(dataFile, mimeType, chunkSize, uploadUrl);
+    }
+
+    @Override
+    public String startResumableUpload(String fileName, long fileSize, String mimeType) throws IOException {
+        return getApi().startResumableUpload(fileName, fileSize, mimeType);
+    }
+
+    @Override
+    public BatchCreateMediaItemsResponse batchCreateMediaItems(BatchCreateMediaItemsRequest request) {
+        return getApi().batchCreateMediaItems(request);
+    }
+
+    @Override
+    public BatchAddMediaItemsToAlbumResponse batchAddMediaItemsToAlbum(String albumId, List<String> mediaItemIds) {
+        return getApi().batchAddMediaItemsToAlbum(albumId, mediaItemIds);
+    }
+
+    @Override
+    public Album createAlbum(String title) {
+        return getApi().createAlbum(title);
+    }
+
+    @Override
+    public ListAlbumsResponse listAlbums(String pageToken) {
+        return getApi().listAlbums(pageToken);
+    }
+
+    @Override
+    public synchronized void close() {
+        closed = true;
+        if (api != null) {
+            api.close();
+        }
+    }
+
+    private PhotosApi getApi() {
+        PhotosApi createdApi = api;
+        if (createdApi == null) {
+            synchronized (this) {
+                if (closed) {
+                    throw new IllegalStateException("Photos API closed");
+                }
+                if (api == null) {
+                    log.info("Creating Photos API client for the first call");
+                    api = apiFactory.get();
+                }
+                createdApi = api;
+            }
+        }
+        return createdApi;
+    }
+}
@@ -0,0 +1,53 @@
+package us.abaz.googlephotos.api;
+
+import com.google.api.core.ApiFuture;
+import com.google.photos.library.v1.proto.BatchAddMediaItemsToAlbumResponse;
+import com.google.photos.library.v1.proto.BatchCreateMediaItemsRequest;
+import com.google.photos.library.v1.proto.BatchCreateMediaItemsResponse;
+import com.google.photos.library.v1.proto.ListAlbumsResponse;
+import com.google.photos.library.v1.upload.UploadMediaItemResponse;
+import com.google.photos.types.proto.Album;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+/**
+ * The Google Photos Library API calls the uploader makes.  {@link GooglePhotosApi} calls the real service; any
+ * other implementation, such as the fake used for load testing, can stand in for it.
+ */
+public interface PhotosApi extends AutoCloseable {
+    /**
+     * Upload the bytes of a file
+     *
+     * @param dataFile  The open file to upload
+     * @param mimeType  The file mime type
+     * @param chunkSize Bytes sent per request
+     * @param uploadUrl A resumable upload session to send the bytes to, or null for a new upload
+     * @return The upload result - an upload token or an error
+     */
+    ApiFuture<UploadMediaItemResponse> uploadMediaItem(RandomAccessFile dataFile, String mimeType, int chunkSize, String uploadUrl);
+
+    /**
+     * Start a resumable upload session
+     *
+     * @return The upload URL the bytes are sent to
+     */
+    String startResumableUpload(String fileName, long fileSize, String mimeType) throws IOException;
+
+    BatchCreateMediaItemsResponse batchCreateMediaItems(BatchCreateMediaItemsRequest request);
+
+    BatchAddMediaItemsToAlbumResponse batchAddMediaItemsToAlbum(String albumId, List<String> mediaItemIds);
+
+    Album createAlbum(String title);
+
+    /**
+     * List one page of the albums in the library
+     *
+     * @param pageToken The next page token of the previous page, or empty for the first page
+     */
+    ListAlbumsResponse listAlbums(String pageToken);
+
+    @Override
+    void close();
+}
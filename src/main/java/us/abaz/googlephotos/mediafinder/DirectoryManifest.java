@@ -0,0 +1,147 @@
+package us.abaz.googlephotos.mediafinder;
+
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * What each directory held when it was last listed - its modification time, its subdirectories and how many of its
+ * media files were still pending.
+ * <p>
+ * Adding, removing or renaming an entry changes a directory's modification time, so a directory whose time is
+ * unchanged and which had nothing pending does not need listing again - only its subdirectories need checking,
+ * and those are known from the manifest.  The manifest is only trusted for the search root and media types it
+ * was written for.
+ */
+@Slf4j
+class DirectoryManifest {
+    private static final String HEADER = "# GooglePhotoAlbumUploader directory manifest v2";
+    private static final String SEPARATOR = "\t";
+    // A directory modified this close to its listing may change again within the file system's time granularity
+    private static final long UNSETTLED_MILLIS = 2000;
+    // Recorded for directories that must always be listed
+    private static final int ALWAYS_LIST = -1;
+
+    private final File file;
+    private final String key;
+    private final Map<String, Entry> previous;
+    private final Map<String, Entry> current = new ConcurrentHashMap<>();
+    private final AtomicInteger listedCount = new AtomicInteger();
+    private final AtomicInteger skippedCount = new AtomicInteger();
+
+    private DirectoryManifest(File file, String key, Map<String, Entry> previous) {
+        this.file = file;
+        this.key = key;
+        this.previous = previous;
+    }
+
+    /**
+     * Load the manifest written by an earlier walk, or start an empty one if it was written for another key
+     *
+     * @param file The manifest file
+     * @param key  Identifies what the walk looks for - the search root and media types
+     */
+    static DirectoryManifest load(File file, String key) throws IOException {
+        Map<String, Entry> entries = new ConcurrentHashMap<>();
+        if (file.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+                if (HEADER.equals(reader.readLine()) && key.equals(reader.readLine())) {
+                    String line;
+                    while ((line = reader.readLine()) != null) {
+                        String[] fields = line.split(SEPARATOR, -1);
+                        if (fields.length >= 3) {
+                            List<String> subdirectories = fields.length > 3
+                                    ? Arrays.asList(Arrays.copyOfRange(fields, 3, fields.length))
+                                    : Collections.emptyList();
+                            entries.put(fields[2], new Entry(Long.parseLong(fields[0]), Integer.parseInt(fields[1]), subdirectories));
+                        }
+                    }
+                } else {
+                    log.info("Directory manifest {} was written for another search - listing every directory", file);
+                }
+            }
+        }
+        log.info("Loaded directory manifest with {} directories", entries.size());
+        return new DirectoryManifest(file, key, entries);
+    }
+
+    /**
+     * Check whether a directory can be skipped, carrying its entry over to the new manifest if so
+     *
+     * @param directory    The directory path
+     * @param lastModified The directory's modification time now
+     * @return The subdirectories to check, or null if the directory has to be listed
+     */
+    List<String> getUnchangedSubdirectories(String directory, long lastModified) {
+        Entry entry = previous.get(directory);
+        if (entry == null || entry.lastModified != lastModified || entry.pendingAtScan != 0) {
+            listedCount.incrementAndGet();
+            return null;
+        }
+        current.put(directory, entry);
+        skippedCount.incrementAndGet();
+        return entry.subdirectories;
+    }
+
+    /**
+     * Record a directory that was listed
+     *
+     * @param directory      The directory path
+     * @param lastModified   The directory's modification time, read before it was listed
+     * @param subdirectories Names of the subdirectories listed
+     * @param pendingAtScan  Number of media files in the directory that were not processed yet
+     */
+    void record(String directory, long lastModified, List<String> subdirectories, int pendingAtScan) {
+        boolean unsettled = System.currentTimeMillis() - lastModified < UNSETTLED_MILLIS;
+        boolean unwritable = directory.contains(SEPARATOR) || directory.contains("\n")
+                || subdirectories.stream().anyMatch(name -> name.contains(SEPARATOR) || name.contains("\n"));
+        if (unwritable) {
+            return;
+        }
+        current.put(directory, new Entry(lastModified, unsettled ? ALWAYS_LIST : pendingAtScan, subdirectories));
+    }
+
+    /**
+     * Replace the manifest file with the directories recorded by this walk
+     */
+    void save() {
+        log.info("Listed {} directories and skipped {} unchanged since the last walk", listedCount.get(), skippedCount.get());
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmpFile);
+                 PrintWriter writer = new PrintWriter(new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8)))) {
+                writer.println(HEADER);
+                writer.println(key);
+                current.forEach((directory, entry) -> {
+                    List<String> fields = new ArrayList<>(Arrays.asList(String.valueOf(entry.lastModified),
+                            String.valueOf(entry.pendingAtScan), directory));
+                    fields.addAll(entry.subdirectories);
+                    writer.println(String.join(SEPARATOR, fields));
+                });
+                writer.flush();
+                out.getFD().sync();
+            }
+            Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Unable to save directory manifest to {}", file, e);
+        }
+    }
+
+    @AllArgsConstructor
+    private static class Entry {
+        private final long lastModified;
+        private final int pendingAtScan;
+        private final List<String> subdirectories;
+    }
+}
@@ -0,0 +1,252 @@
+package us.abaz.googlephotos.mediafinder;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+/**
+ * Watches every directory below a root for new media files, for a long running upload daemon.
+ * <p>
+ * Directories created later are registered as they appear, and walked in case files landed in them before the
+ * registration.  A file is only handed on once its size and modification time have stopped changing for the
+ * settle time, so files still being copied in are not uploaded half written.  Watch events can be lost, most
+ * often on network file systems, so the whole tree is also rescanned periodically - the consumer is expected to
+ * skip files it has already seen.
+ */
+@Slf4j
+public class DirectoryWatcher implements AutoCloseable {
+    private static final long POLL_MILLIS = 1000;
+
+    private final String rootPath;
+    private final GoogleSupportedMediaFinder mediaFinder;
+    private final Predicate<MediaFile> consumer;
+    private final Runnable rescanListener;
+    private final long settleMillis;
+    private final long rescanNanos;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> watchedDirectories = new HashMap<>();
+    private final Map<Path, PendingFile> pendingFiles = new HashMap<>();
+    private final Thread watchThread;
+    private long nextRescanNanos;
+    private volatile boolean closed = false;
+
+    /**
+     * @param rootPath       The root of the tree to watch
+     * @param mediaFinder    Decides which files are media files and walks the tree for rescans
+     * @param consumer       Receives each new media file once it has settled, and every settled file found by a
+     *                       rescan - concurrently during a rescan with a discovery parallelism above 1.  Returns
+     *                       whether the file is still to be processed, for the directory manifest.
+     * @param rescanListener Called on the watch thread before each rescan, e.g. to compact state that grows
+     *                       while watching
+     * @param settleSeconds  Seconds a file must go unchanged before it is handed on
+     * @param rescanMinutes  Minutes between rescans of the whole tree, 0 for none
+     */
+    public DirectoryWatcher(String rootPath,
+                            GoogleSupportedMediaFinder mediaFinder,
+                            Predicate<MediaFile> consumer,
+                            Runnable rescanListener,
+                            int settleSeconds,
+                            int rescanMinutes) throws IOException {
+        this.rootPath = rootPath;
+        this.mediaFinder = mediaFinder;
+        this.consumer = consumer;
+        this.rescanListener = rescanListener;
+        this.settleMillis = TimeUnit.SECONDS.toMillis(settleSeconds);
+        this.rescanNanos = rescanMinutes > 0 ? TimeUnit.MINUTES.toNanos(rescanMinutes) : Long.MAX_VALUE;
+        this.nextRescanNanos = System.nanoTime() + rescanNanos;
+        this.watchService = FileSystems.getDefault().newWatchService();
+        int registered = registerTree(Paths.get(rootPath), false);
+        log.info("Watching {} directories below {} for new files", registered, rootPath);
+        watchThread = new Thread(this::watch, "directory-watcher");
+        watchThread.setDaemon(true);
+    }
+
+    /**
+     * Start handing on new files.  Directories are registered on construction so files created between then and
+     * the end of an initial walk are not missed.
+     */
+    public void start() {
+        watchThread.start();
+    }
+
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            watchService.close();
+        } catch (IOException e) {
+            log.debug("Unable to close watch service", e);
+        }
+        watchThread.interrupt();
+    }
+
+    private void watch() {
+        try {
+            while (!closed) {
+                WatchKey key = watchService.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                while (key != null) {
+                    handleEvents(key);
+                    key = watchService.poll();
+                }
+                handSettledFiles();
+                if (System.nanoTime() - nextRescanNanos >= 0) {
+                    rescan("periodic rescan");
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            log.debug("Directory watcher stopped");
+        } catch (RuntimeException e) {
+            // The consumer gives up once the upload is stopped
+            if (!closed) {
+                log.error("Directory watcher failed", e);
+            }
+        }
+    }
+
+    private void handleEvents(WatchKey key) {
+        Path directory = watchedDirectories.get(key);
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                // Events were dropped - only a rescan can say what they were
+                nextRescanNanos = System.nanoTime();
+                continue;
+            }
+            if (directory == null) {
+                continue;
+            }
+            Path path = directory.resolve((Path) event.context());
+            if (Files.isDirectory(path, LinkOption.NOFOLLOW_LINKS)) {
+                if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE) {
+                    registerTree(path, true);
+                }
+            } else if (mediaFinder.isSupported(path)) {
+                offer(path);
+            }
+        }
+        if (!key.reset()) {
+            watchedDirectories.remove(key);
+        }
+    }
+
+    /**
+     * Register a directory and everything below it, optionally offering the media files already in it
+     *
+     * @return The number of directories registered
+     */
+    private int registerTree(Path directory, boolean offerFiles) {
+        int[] registered = {0};
+        try {
+            Files.walkFileTree(directory, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attributes) throws IOException {
+                    WatchKey key = dir.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+                    watchedDirectories.put(key, dir);
+                    registered[0]++;
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) {
+                    if (offerFiles && attributes.isRegularFile() && mediaFinder.isSupported(path)) {
+                        offer(path);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    log.warn("Unable to watch {}: {}", path, e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            log.warn("Unable to watch {}: {}", directory, e.getMessage());
+        }
+        return registered[0];
+    }
+
+    private void rescan(String reason) {
+        log.info("Rescanning {} - {}", rootPath, reason);
+        nextRescanNanos = System.nanoTime() + rescanNanos;
+        rescanListener.run();
+        mediaFinder.walkPendingMediaFiles(rootPath, mediaFile -> {
+            if (System.currentTimeMillis() - mediaFile.getLastModified() >= settleMillis) {
+                return consumer.test(mediaFile);
+            }
+            offer(Paths.get(mediaFile.getCompleteFilename()));
+            return true;
+        });
+    }
+
+    /**
+     * Start or restart the settle time of a file
+     */
+    private void offer(Path path) {
+        synchronized (pendingFiles) {
+            pendingFiles.computeIfAbsent(path, key -> new PendingFile());
+        }
+    }
+
+    /**
+     * Hand on the pending files whose size and modification time have not changed for the settle time.  The
+     * consumer may block on a full work queue, so it is called after the pending files are released for the
+     * watch events and rescan walk threads offering more.
+     */
+    private void handSettledFiles() {
+        long now = System.currentTimeMillis();
+        List<MediaFile> settledFiles = new ArrayList<>();
+        synchronized (pendingFiles) {
+            Iterator<Map.Entry<Path, PendingFile>> pending = pendingFiles.entrySet().iterator();
+            while (pending.hasNext()) {
+                Map.Entry<Path, PendingFile> entry = pending.next();
+                BasicFileAttributes attributes;
+                try {
+                    attributes = Files.readAttributes(entry.getKey(), BasicFileAttributes.class);
+                } catch (IOException e) {
+                    // Deleted or renamed before it settled
+                    pending.remove();
+                    continue;
+                }
+                PendingFile pendingFile = entry.getValue();
+                long lastModified = attributes.lastModifiedTime().toMillis();
+                if (attributes.size() != pendingFile.size || lastModified != pendingFile.lastModified) {
+                    pendingFile.size = attributes.size();
+                    pendingFile.lastModified = lastModified;
+                    pendingFile.unchangedSince = now;
+                } else if (now - pendingFile.unchangedSince >= settleMillis || now - lastModified >= settleMillis) {
+                    // Unchanged since the last check, and either for the settle time or last written long ago -
+                    // i.e. a file moved in with its modification time kept
+                    pending.remove();
+                    settledFiles.add(MediaFile.fromPath(rootPath, entry.getKey(), attributes));
+                }
+            }
+        }
+        settledFiles.forEach(consumer::test);
+    }
+
+    private static class PendingFile {
+        private long size = -1;
+        private long lastModified = -1;
+        private long unchangedSince;
+    }
+}
@@ -3,29 +3,53 @@ package us.abaz.googlephotos.mediafinder;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.Arrays;
 import java.util.HashSet;
 import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.stream.Collectors;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 @Slf4j
-public class GoogleSupportedMediaFinder extends SimpleFileVisitor<Path> {
-    private static final String[] GOOGLE_SUPPORTED_PHOTO_EXTENSIONS =
+public class GoogleSupportedMediaFinder {
+    static final String[] GOOGLE_SUPPORTED_PHOTO_EXTENSIONS =
             {
                     "BMP", "GIF", "HEIC", "ICO", "JPG", "PNG", "TIFF", "WEBP", "RAW"
             };
-    private static final String[] GOOGLE_SUPPORTED_VIDEO_EXTENSIONS = {
+    static final String[] GOOGLE_SUPPORTED_VIDEO_EXTENSIONS = {
             "3GP", "3G2", "ASF", "AVI", "DIVX", "M2T", "M2TS", "M4V", "MKV", "MMV", "MOD", "MOV", "MP4", "MPG", "MTS", "TOD", "WMV"
     };
 
     private final Set<String> extMatchSet = new HashSet<>();
+    private final int parallelism;
+    private final File manifestFile;
 
     public GoogleSupportedMediaFinder(boolean includePhotos, boolean includeVideos) {
+        this(includePhotos, includeVideos, 1);
+    }
+
+    public GoogleSupportedMediaFinder(boolean includePhotos, boolean includeVideos, int parallelism) {
+        this(includePhotos, includeVideos, parallelism, null);
+    }
+
+    /**
+     * @param includePhotos Whether photo files are matched
+     * @param includeVideos Whether video files are matched
+     * @param parallelism   Number of directories listed concurrently - 1 walks the tree on the calling thread
+     * @param manifestFile  Directory manifest used to skip directories unchanged since the last walk, or null to
+     *                      list every directory
+     */
+    public GoogleSupportedMediaFinder(boolean includePhotos, boolean includeVideos, int parallelism, File manifestFile) {
         if (includePhotos) {
             log.info("Including photo files");
             Arrays.stream(GOOGLE_SUPPORTED_PHOTO_EXTENSIONS).forEach(ext -> extMatchSet.add("." + ext.toLowerCase()));
@@ -34,27 +58,117 @@ public class GoogleSupportedMediaFinder extends SimpleFileVisitor<Path> {
             log.info("Including video files");
             Arrays.stream(GOOGLE_SUPPORTED_VIDEO_EXTENSIONS).forEach(ext -> extMatchSet.add("." + ext.toLowerCase()));
         }
+        this.parallelism = Math.max(1, parallelism);
+        this.manifestFile = manifestFile;
     }
 
-    @SneakyThrows
+    /**
+     * Find all supported media files below a root path, returning only once the whole tree has been walked
+     *
+     * @param rootPath The root path to search
+     * @return The supported media files in walk order
+     */
     public Set<MediaFile> findMediaFiles(String rootPath) {
-        return Files.walk(Paths.get(rootPath))
-                        .filter(Files::isRegularFile)
-                        .filter(path -> {
-                            // Check to see if this is a supported file type
-                            String fileName = path.getFileName().toString();
-                            int dotIdx = fileName.lastIndexOf('.');
-                            if (dotIdx == -1) {
-                                return false;
-                            }
-                            String ext = fileName.substring(dotIdx);
-                            boolean match = extMatchSet.contains(ext.toLowerCase());
-                            if (!match) {
-                                log.trace("Skipping mediafinder - no match: {}", path);
-                            }
-                            return match;
-                        })
-                        .map(path -> MediaFile.fromPathString(rootPath, path.toString()))
-                        .collect(Collectors.toCollection( LinkedHashSet::new ));
-    }
-}
\ No newline at end of file
+        return findMediaFiles(rootPath, mediaFile -> true);
+    }
+
+    /**
+     * Find the supported media files below a root path that are still pending, returning only once the whole tree
+     * has been walked
+     *
+     * @param rootPath The root path to search
+     * @param pending  Whether a file is still to be processed - with a manifest, directories holding none are not
+     *                 listed by the next walk unless they change
+     * @return The pending media files in walk order
+     */
+    public Set<MediaFile> findMediaFiles(String rootPath, Predicate<MediaFile> pending) {
+        ConcurrentLinkedQueue<MediaFile> mediaFiles = new ConcurrentLinkedQueue<>();
+        walkPendingMediaFiles(rootPath, mediaFile -> pending.test(mediaFile) && mediaFiles.add(mediaFile));
+        return new LinkedHashSet<>(mediaFiles);
+    }
+
+    /**
+     * Walk the tree below a root path handing each supported media file to a consumer as soon as it is found.
+     * With a parallelism above 1 the consumer is called concurrently from several threads.
+     *
+     * @param rootPath The root path to search
+     * @param consumer Receives each supported media file
+     */
+    public void walkMediaFiles(String rootPath, Consumer<MediaFile> consumer) {
+        walkPendingMediaFiles(rootPath, mediaFile -> {
+            consumer.accept(mediaFile);
+            return true;
+        });
+    }
+
+    /**
+     * Walk the tree below a root path handing each supported media file to a consumer as soon as it is found.
+     * With a parallelism above 1 the consumer is called concurrently from several threads.  With a manifest,
+     * directories unchanged since the last walk and with no pending files then are not listed, and the manifest
+     * is rewritten once the walk completes.
+     *
+     * @param rootPath The root path to search
+     * @param consumer Receives each supported media file, returning whether it is still to be processed
+     */
+    @SneakyThrows
+    public void walkPendingMediaFiles(String rootPath, Predicate<MediaFile> consumer) {
+        Path root = Paths.get(rootPath);
+        if (manifestFile != null) {
+            DirectoryManifest manifest = DirectoryManifest.load(manifestFile, getManifestKey(root));
+            new ParallelDirectoryWalker(parallelism, (path, attributes) -> acceptFile(rootPath, path, attributes, consumer), manifest)
+                    .walk(root);
+            manifest.save();
+        } else if (parallelism > 1) {
+            new ParallelDirectoryWalker(parallelism, (path, attributes) -> acceptFile(rootPath, path, attributes, consumer), null)
+                    .walk(root);
+        } else {
+            Files.walkFileTree(root, new SimpleFileVisitor<>() {
+                @Override
+                public FileVisitResult visitFile(Path path, BasicFileAttributes attributes) throws IOException {
+                    // Like Files.walk, symbolic links to files are accepted
+                    if (attributes.isSymbolicLink()) {
+                        attributes = Files.readAttributes(path, BasicFileAttributes.class);
+                    }
+                    if (attributes.isRegularFile()) {
+                        acceptFile(rootPath, path, attributes, consumer);
+                    }
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFileFailed(Path path, IOException e) {
+                    log.warn("Skipping unreadable path {}: {}", path, e.getMessage());
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        }
+    }
+
+    /**
+     * A manifest only applies to walks of the same root for the same media types
+     */
+    private String getManifestKey(Path root) {
+        return root.toAbsolutePath().normalize() + " " + String.join(",", new TreeSet<>(extMatchSet));
+    }
+
+    private boolean acceptFile(String rootPath, Path path, BasicFileAttributes attributes, Predicate<MediaFile> consumer) {
+        return isSupported(path) && consumer.test(MediaFile.fromPath(rootPath, path, attributes));
+    }
+
+    /**
+     * Check to see if this is a supported file type
+     */
+    boolean isSupported(Path path) {
+        String fileName = path.getFileName().toString();
+        int dotIdx = fileName.lastIndexOf('.');
+        if (dotIdx == -1) {
+            return false;
+        }
+        String ext = fileName.substring(dotIdx);
+        boolean match = extMatchSet.contains(ext.toLowerCase());
+        if (!match) {
+            log.trace("Skipping mediafinder - no match: {}", path);
+        }
+        return match;
+    }
+}
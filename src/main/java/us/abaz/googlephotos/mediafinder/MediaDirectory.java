@@ -0,0 +1,60 @@
+package us.abaz.googlephotos.mediafinder;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+
+import java.io.File;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * A directory holding media files.  Directories are interned, so every file in a directory shares one instance and
+ * its path and album name are stored once per directory rather than once per file.
+ */
+@EqualsAndHashCode(onlyExplicitlyIncluded = true)
+public final class MediaDirectory {
+    private static final Map<String, MediaDirectory> DIRECTORIES = new ConcurrentHashMap<>();
+
+    @Getter
+    @EqualsAndHashCode.Include
+    private final String path;
+    private final String rootPath;
+    private volatile String albumName;
+
+    private MediaDirectory(String rootPath, String path) {
+        this.rootPath = rootPath;
+        this.path = path;
+    }
+
+    /**
+     * Get the shared instance for a directory
+     *
+     * @param rootPath The search root the album name is relative to
+     * @param path     The absolute directory path
+     */
+    public static MediaDirectory of(String rootPath, String path) {
+        MediaDirectory directory = DIRECTORIES.computeIfAbsent(path, key -> new MediaDirectory(rootPath, key));
+        // Only one search root is used per run - a directory seen under another root just is not shared
+        return directory.rootPath.equals(rootPath) ? directory : new MediaDirectory(rootPath, path);
+    }
+
+    /**
+     * @return The path relative to the search root with the separators replaced by spaces, worked out on first use
+     */
+    public String getAlbumName() {
+        String name = albumName;
+        if (name == null) {
+            String rootPrefix = rootPath.endsWith(File.separator) ? rootPath : rootPath + File.separator;
+            String relativePath = path.startsWith(rootPrefix) ? path.substring(rootPrefix.length()) : path;
+            // Either separator, so names from paths written on Windows come out the same as those found on disk
+            name = relativePath.replace('\\', ' ').replace('/', ' ');
+            albumName = name;
+        }
+        return name;
+    }
+
+    @Override
+    public String toString() {
+        return path;
+    }
+}
@@ -1,32 +1,67 @@
 package us.abaz.googlephotos.mediafinder;
 
 import lombok.Builder;
+import lombok.EqualsAndHashCode;
 import lombok.Value;
 
 import java.io.File;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.attribute.BasicFileAttributes;
 
+/**
+ * A file to upload, held as its shared {@link MediaDirectory} and its own name so the per file footprint is the
+ * name and a few primitives however many files are pending
+ */
 @Value
 @Builder
 public class MediaFile {
-    String absolutePath;
-    String albumName;
+    MediaDirectory directory;
     String fileName;
+    // Size and modification time as read during discovery - not part of the file identity
+    @EqualsAndHashCode.Exclude
+    long fileSize;
+    @EqualsAndHashCode.Exclude
+    long lastModified;
+    // Resolved from the extension once at discovery
+    @EqualsAndHashCode.Exclude
+    String mimeType;
 
+    public String getAbsolutePath() {
+        return directory.getPath();
+    }
+
+    public String getAlbumName() {
+        return directory.getAlbumName();
+    }
+
+    /**
+     * @return The absolute file name - built on each call, so prefer the directory and file name where they will do
+     */
     public String getCompleteFilename() {
-        return absolutePath + File.separator + fileName;
+        return directory.getPath() + File.separator + fileName;
     }
 
     public static MediaFile fromPathString(String rootPath, String pathString) {
-        Path path =  Paths.get(pathString);
-        String relativePath = path.getParent().toAbsolutePath().toString().replace(rootPath + File.separator, "");
-        String albumName = relativePath.replaceAll(File.separator, " ");
-        String absoluteParentPath = path.getParent().toAbsolutePath().toString();
-        return MediaFile.builder()
-                .absolutePath(absoluteParentPath)
-                .albumName(albumName)
-                .fileName(path.toString().replace(absoluteParentPath + File.separator, ""))
+        return builderFromPath(rootPath, Paths.get(pathString)).build();
+    }
+
+    /**
+     * Create a media file from a path and the attributes already read for it during discovery
+     */
+    public static MediaFile fromPath(String rootPath, Path path, BasicFileAttributes attributes) {
+        return builderFromPath(rootPath, path)
+                .fileSize(attributes.size())
+                .lastModified(attributes.lastModifiedTime().toMillis())
                 .build();
     }
+
+    private static MediaFileBuilder builderFromPath(String rootPath, Path path) {
+        Path absolutePath = path.toAbsolutePath();
+        String fileName = absolutePath.getFileName().toString();
+        return MediaFile.builder()
+                .directory(MediaDirectory.of(rootPath, absolutePath.getParent().toString()))
+                .fileName(fileName)
+                .mimeType(MimeTypes.forFileName(fileName));
+    }
 }
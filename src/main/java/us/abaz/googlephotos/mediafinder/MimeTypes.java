@@ -0,0 +1,181 @@
+package us.abaz.googlephotos.mediafinder;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Mime types for the supported media extensions, resolved from a precomputed table rather than probing the file
+ * system, with an optional sniff of the file header for files whose extension does not match their content
+ */
+@Slf4j
+public final class MimeTypes {
+    public static final String DEFAULT_MIME_TYPE = "application/octet-stream";
+    // Enough for the MPEG transport stream checks, which look at the second 188 or 192 byte packet
+    private static final int HEADER_BYTES = 256;
+    private static final int TS_PACKET_SIZE = 188;
+    private static final int M2TS_PACKET_SIZE = 192;
+
+    // Types that can not be derived from the extension itself - the rest are image/<ext> or video/<ext>
+    private static final Map<String, String> NON_STANDARD_MIME_TYPES = Map.ofEntries(
+            Map.entry("ico", "image/x-icon"),
+            Map.entry("jpg", "image/jpeg"),
+            Map.entry("raw", "image/x-raw"),
+            Map.entry("3gp", "video/3gpp"),
+            Map.entry("3g2", "video/3gpp2"),
+            Map.entry("asf", "video/x-ms-asf"),
+            Map.entry("avi", "video/x-msvideo"),
+            Map.entry("m2t", "video/mp2t"),
+            Map.entry("m2ts", "video/mp2t"),
+            Map.entry("m4v", "video/x-m4v"),
+            Map.entry("mkv", "video/x-matroska"),
+            Map.entry("mod", "video/mpeg"),
+            Map.entry("mov", "video/quicktime"),
+            Map.entry("mpg", "video/mpeg"),
+            Map.entry("mts", "video/mp2t"),
+            Map.entry("tod", "video/mpeg"),
+            Map.entry("wmv", "video/x-ms-wmv"));
+
+    private static final Map<String, String> MIME_TYPES_BY_EXTENSION = buildMimeTypeTable();
+
+    private MimeTypes() {
+    }
+
+    /**
+     * @param fileName A file name
+     * @return The mime type for the file extension, or {@link #DEFAULT_MIME_TYPE} for an unsupported extension
+     */
+    public static String forFileName(String fileName) {
+        int dotIdx = fileName.lastIndexOf('.');
+        String mimeType = dotIdx != -1 ? MIME_TYPES_BY_EXTENSION.get(fileName.substring(dotIdx + 1).toLowerCase()) : null;
+        return mimeType != null ? mimeType : DEFAULT_MIME_TYPE;
+    }
+
+    /**
+     * Check the first bytes of a file against the signatures of the supported formats
+     *
+     * @param path             The file to sniff
+     * @param expectedMimeType The mime type from the file extension
+     * @return The mime type matching the file content, or the expected mime type if the content is not recognised
+     */
+    public static String sniff(Path path, String expectedMimeType) {
+        byte[] header = new byte[HEADER_BYTES];
+        int length;
+        try (InputStream in = Files.newInputStream(path)) {
+            length = in.readNBytes(header, 0, HEADER_BYTES);
+        } catch (IOException e) {
+            log.debug("Unable to sniff mime type of {}: {}", path, e.getMessage());
+            return expectedMimeType;
+        }
+        String sniffedMimeType = fromHeader(header, length, expectedMimeType);
+        if (sniffedMimeType == null) {
+            return expectedMimeType;
+        }
+        if (!sniffedMimeType.equals(expectedMimeType)) {
+            log.info("Content of {} is {} rather than {}", path, sniffedMimeType, expectedMimeType);
+        }
+        return sniffedMimeType;
+    }
+
+    private static String fromHeader(byte[] header, int length, String expectedMimeType) {
+        // The first four bytes of an ftyp box are its size, which can look like the ICO or MPEG-PS signatures
+        if (startsWith(header, length, 4, 'f', 't', 'y', 'p') && length >= 12) {
+            return fromFtypBrand(new String(header, 8, 4, StandardCharsets.ISO_8859_1), expectedMimeType);
+        }
+        if (startsWith(header, length, 0, 0xFF, 0xD8, 0xFF)) {
+            return "image/jpeg";
+        }
+        if (startsWith(header, length, 0, 0x89, 'P', 'N', 'G')) {
+            return "image/png";
+        }
+        if (startsWith(header, length, 0, 'G', 'I', 'F', '8')) {
+            return "image/gif";
+        }
+        if (startsWith(header, length, 0, 'I', 'I', 0x2A, 0x00) || startsWith(header, length, 0, 'M', 'M', 0x00, 0x2A)) {
+            // Many camera raw formats are TIFF containers too
+            return "image/x-raw".equals(expectedMimeType) ? expectedMimeType : "image/tiff";
+        }
+        if (startsWith(header, length, 0, 'R', 'I', 'F', 'F')) {
+            if (startsWith(header, length, 8, 'W', 'E', 'B', 'P')) {
+                return "image/webp";
+            }
+            if (startsWith(header, length, 8, 'A', 'V', 'I', ' ')) {
+                // DivX is an AVI container - keep its more specific type
+                return "video/divx".equals(expectedMimeType) ? expectedMimeType : "video/x-msvideo";
+            }
+            return null;
+        }
+        if (startsWith(header, length, 0, 'B', 'M')) {
+            return "image/bmp";
+        }
+        if (startsWith(header, length, 0, 0x00, 0x00, 0x01, 0x00)) {
+            return "image/x-icon";
+        }
+        if (startsWith(header, length, 0, 0x1A, 0x45, 0xDF, 0xA3)) {
+            return "video/x-matroska";
+        }
+        if (startsWith(header, length, 0, 0x30, 0x26, 0xB2, 0x75)) {
+            // ASF and WMV share a header
+            return "video/x-ms-asf".equals(expectedMimeType) ? expectedMimeType : "video/x-ms-wmv";
+        }
+        if (startsWith(header, length, 0, 0x00, 0x00, 0x01, 0xBA)) {
+            return "video/mpeg";
+        }
+        if (startsWith(header, length, 0, 0x47) && startsWith(header, length, TS_PACKET_SIZE, 0x47)
+                || startsWith(header, length, 4, 0x47) && startsWith(header, length, M2TS_PACKET_SIZE + 4, 0x47)) {
+            return "video/mp2t";
+        }
+        return null;
+    }
+
+    /**
+     * ISO base media files (HEIC, MP4, MOV, 3GP...) all start with an ftyp box naming the major brand
+     */
+    private static String fromFtypBrand(String brand, String expectedMimeType) {
+        if (brand.startsWith("hei") || brand.startsWith("hev") || brand.equals("mif1") || brand.equals("msf1")) {
+            return "image/heic";
+        }
+        if (brand.equals("qt  ")) {
+            return "video/quicktime";
+        }
+        if (brand.startsWith("3g2")) {
+            return "video/3gpp2";
+        }
+        if (brand.startsWith("3gp")) {
+            return "video/3gpp";
+        }
+        // The remaining brands are all MP4 - keep the M4V type for M4V files
+        return "video/x-m4v".equals(expectedMimeType) ? expectedMimeType : "video/mp4";
+    }
+
+    private static boolean startsWith(byte[] header, int length, int offset, int... signature) {
+        if (offset + signature.length > length) {
+            return false;
+        }
+        for (int i = 0; i < signature.length; i++) {
+            if ((header[offset + i] & 0xFF) != signature[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static Map<String, String> buildMimeTypeTable() {
+        Map<String, String> mimeTypes = new HashMap<>();
+        Arrays.stream(GoogleSupportedMediaFinder.GOOGLE_SUPPORTED_PHOTO_EXTENSIONS)
+                .map(String::toLowerCase)
+                .forEach(ext -> mimeTypes.put(ext, NON_STANDARD_MIME_TYPES.getOrDefault(ext, "image/" + ext)));
+        Arrays.stream(GoogleSupportedMediaFinder.GOOGLE_SUPPORTED_VIDEO_EXTENSIONS)
+                .map(String::toLowerCase)
+                .forEach(ext -> mimeTypes.put(ext, NON_STANDARD_MIME_TYPES.getOrDefault(ext, "video/" + ext)));
+        return Collections.unmodifiableMap(mimeTypes);
+    }
+}
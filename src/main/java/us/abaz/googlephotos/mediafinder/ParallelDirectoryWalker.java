@@ -0,0 +1,112 @@
+package us.abaz.googlephotos.mediafinder;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.BiPredicate;
+
+/**
+ * Walks a directory tree with one fork/join task per directory so that directory listings on high latency
+ * network filesystems are issued concurrently rather than one round trip at a time.  The attributes read for
+ * each entry are handed to the consumer so they never need to be read again.
+ * <p>
+ * With a {@link DirectoryManifest}, a directory unchanged since the last walk, with nothing pending in it then, is
+ * not listed - only its known subdirectories are visited, as changes below a directory do not change its own
+ * modification time.
+ */
+@Slf4j
+class ParallelDirectoryWalker {
+    private final int parallelism;
+    private final BiPredicate<Path, BasicFileAttributes> fileConsumer;
+    private final DirectoryManifest manifest;
+
+    /**
+     * @param parallelism  The number of directories listed concurrently
+     * @param fileConsumer Called, possibly concurrently, for every regular file found - returns whether the file
+     *                     is still pending, i.e. not yet processed
+     * @param manifest     The manifest of the last walk to skip unchanged directories with, or null to list all
+     */
+    ParallelDirectoryWalker(int parallelism, BiPredicate<Path, BasicFileAttributes> fileConsumer, DirectoryManifest manifest) {
+        this.parallelism = parallelism;
+        this.fileConsumer = fileConsumer;
+        this.manifest = manifest;
+    }
+
+    void walk(Path root) {
+        ForkJoinPool pool = new ForkJoinPool(parallelism);
+        try {
+            pool.invoke(new DirectoryTask(root));
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    private class DirectoryTask extends RecursiveAction {
+        private static final long serialVersionUID = 1L;
+
+        private final Path directory;
+
+        DirectoryTask(Path directory) {
+            this.directory = directory;
+        }
+
+        @Override
+        protected void compute() {
+            List<DirectoryTask> subdirectoryTasks = new ArrayList<>();
+            long lastModified = 0;
+            if (manifest != null) {
+                try {
+                    // Read before listing so a change made during the listing is seen by the next walk
+                    lastModified = Files.getLastModifiedTime(directory).toMillis();
+                } catch (IOException e) {
+                    log.warn("Skipping unreadable directory {}: {}", directory, e.getMessage());
+                    return;
+                }
+                List<String> unchangedSubdirectories = manifest.getUnchangedSubdirectories(directory.toString(), lastModified);
+                if (unchangedSubdirectories != null) {
+                    unchangedSubdirectories.forEach(name -> subdirectoryTasks.add(new DirectoryTask(directory.resolve(name))));
+                    invokeAll(subdirectoryTasks);
+                    return;
+                }
+            }
+            int pendingCount = 0;
+            List<String> subdirectories = new ArrayList<>();
+            try (DirectoryStream<Path> entries = Files.newDirectoryStream(directory)) {
+                for (Path entry : entries) {
+                    // Like Files.walk, do not descend into symbolic links to directories but do accept links to files
+                    BasicFileAttributes attributes = Files.readAttributes(entry, BasicFileAttributes.class, LinkOption.NOFOLLOW_LINKS);
+                    if (attributes.isSymbolicLink()) {
+                        attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+                        if (!attributes.isRegularFile()) {
+                            continue;
+                        }
+                    } else if (attributes.isDirectory()) {
+                        subdirectories.add(entry.getFileName().toString());
+                        subdirectoryTasks.add(new DirectoryTask(entry));
+                        continue;
+                    } else if (!attributes.isRegularFile()) {
+                        continue;
+                    }
+                    if (fileConsumer.test(entry, attributes)) {
+                        pendingCount++;
+                    }
+                }
+                if (manifest != null) {
+                    manifest.record(directory.toString(), lastModified, subdirectories, pendingCount);
+                }
+            } catch (IOException e) {
+                log.warn("Skipping unreadable directory {}: {}", directory, e.getMessage());
+            }
+            invokeAll(subdirectoryTasks);
+        }
+    }
+}
@@ -0,0 +1,20 @@
+package us.abaz.googlephotos.metrics;
+
+import lombok.Value;
+
+/**
+ * Point in time view of a {@link LatencyHistogram} - all times are in microseconds
+ */
+@Value
+public class HistogramSnapshot {
+    long count;
+    long sumMicros;
+    long maxMicros;
+    long p50Micros;
+    long p90Micros;
+    long p99Micros;
+
+    public double getMeanMicros() {
+        return count > 0 ? (double) sumMicros / count : 0;
+    }
+}
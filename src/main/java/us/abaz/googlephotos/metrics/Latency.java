@@ -0,0 +1,19 @@
+package us.abaz.googlephotos.metrics;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * The operations whose latency is tracked
+ */
+@AllArgsConstructor
+@Getter
+public enum Latency {
+    UPLOAD_BYTES("upload_bytes"),
+    MEDIA_ITEM_CREATE("media_item_create"),
+    ALBUM_LOOKUP("album_lookup"),
+    JOURNAL_WRITE("journal_write");
+
+    // Name used in metric labels and JMX attributes
+    private final String metricName;
+}
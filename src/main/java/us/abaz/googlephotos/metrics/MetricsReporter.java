@@ -0,0 +1,237 @@
+package us.abaz.googlephotos.metrics;
+
+import lombok.extern.slf4j.Slf4j;
+import us.abaz.googlephotos.util.SimpleProgressRenderer;
+
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.ToLongFunction;
+
+/**
+ * Takes a {@link MetricsSnapshot} every second on its own thread and publishes it - to the console progress line,
+ * to JMX and, when configured, to a Prometheus text file - so none of that work happens on the upload path
+ */
+@Slf4j
+public class MetricsReporter implements UploadMetricsMXBean, AutoCloseable {
+    public static final String FILES_TOTAL_GAUGE = "files_total";
+    public static final String DISCOVERY_COMPLETE_GAUGE = "discovery_complete";
+    public static final String FILES_IN_FLIGHT_GAUGE = "files_in_flight";
+    public static final String UPLOAD_RATE_LIMIT_GAUGE = "rate_limit_per_minute{endpoint=\"upload\"}";
+
+    private static final String OBJECT_NAME = "us.abaz.googlephotos:type=UploadMetrics";
+    private static final long SNAPSHOT_INTERVAL_MILLIS = 1000;
+    // Throughput is averaged over this many snapshots
+    private static final int RATE_WINDOW = 10;
+
+    private final UploadMetrics metrics;
+    private final File metricsFile;
+    private final long metricsFileIntervalNanos;
+    private final Deque<MetricsSnapshot> window = new ArrayDeque<>();
+    private final ScheduledExecutorService reportExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "metrics-reporter");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile MetricsSnapshot latest;
+    private volatile double bytesPerSecond;
+    private boolean consoleEnabled = true;
+    private long lastMetricsFileNanos;
+    private ObjectName objectName;
+
+    /**
+     * @param metrics                The metrics to report
+     * @param metricsFilePath        Prometheus text file to write, or blank for none
+     * @param metricsIntervalSeconds Seconds between writes of the Prometheus text file
+     */
+    public MetricsReporter(UploadMetrics metrics, String metricsFilePath, int metricsIntervalSeconds) {
+        this.metrics = metrics;
+        this.metricsFile = metricsFilePath == null || metricsFilePath.isBlank() ? null : new File(metricsFilePath);
+        this.metricsFileIntervalNanos = TimeUnit.SECONDS.toNanos(Math.max(1, metricsIntervalSeconds));
+        this.latest = metrics.snapshot();
+        this.lastMetricsFileNanos = System.nanoTime();
+        try {
+            objectName = new ObjectName(OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            log.warn("Unable to register upload metrics with JMX", e);
+            objectName = null;
+        }
+        reportExecutor.scheduleAtFixedRate(this::report, SNAPSHOT_INTERVAL_MILLIS, SNAPSHOT_INTERVAL_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Render the progress line one last time and stop rendering it, leaving the console to shutdown messages
+     */
+    public synchronized void stopConsole() {
+        if (consoleEnabled) {
+            renderConsole(takeSnapshot());
+            consoleEnabled = false;
+        }
+    }
+
+    @Override
+    public void close() {
+        reportExecutor.shutdownNow();
+        synchronized (this) {
+            consoleEnabled = false;
+            MetricsSnapshot snapshot = takeSnapshot();
+            if (metricsFile != null) {
+                writeMetricsFile(snapshot);
+            }
+            log.info("Upload metrics: {} files, {} bytes, latency p50/p99 ms {}",
+                    snapshot.getCounter(UploadMetrics.FILES_UPLOADED), snapshot.getCounter(UploadMetrics.BYTES_UPLOADED), describeLatencies(snapshot));
+        }
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                log.debug("Unable to unregister upload metrics from JMX", e);
+            }
+        }
+    }
+
+    private synchronized void report() {
+        try {
+            MetricsSnapshot snapshot = takeSnapshot();
+            if (consoleEnabled) {
+                renderConsole(snapshot);
+            }
+            if (metricsFile != null && System.nanoTime() - lastMetricsFileNanos >= metricsFileIntervalNanos) {
+                lastMetricsFileNanos = System.nanoTime();
+                writeMetricsFile(snapshot);
+            }
+        } catch (RuntimeException e) {
+            log.warn("Error reporting upload metrics", e);
+        }
+    }
+
+    private MetricsSnapshot takeSnapshot() {
+        MetricsSnapshot snapshot = metrics.snapshot();
+        window.addLast(snapshot);
+        while (window.size() > RATE_WINDOW) {
+            window.removeFirst();
+        }
+        MetricsSnapshot oldest = window.getFirst();
+        long elapsedNanos = snapshot.getElapsedNanos() - oldest.getElapsedNanos();
+        bytesPerSecond = elapsedNanos > 0
+                ? (snapshot.getCounter(UploadMetrics.BYTES_UPLOADED) - oldest.getCounter(UploadMetrics.BYTES_UPLOADED)) * 1e9 / elapsedNanos
+                : 0;
+        latest = snapshot;
+        return snapshot;
+    }
+
+    private void renderConsole(MetricsSnapshot snapshot) {
+        SimpleProgressRenderer.renderProgress(
+                (int) snapshot.getCounter(UploadMetrics.FILES_DISPATCHED),
+                (int) snapshot.getGauge(FILES_TOTAL_GAUGE),
+                snapshot.getGauge(DISCOVERY_COMPLETE_GAUGE) != 0,
+                (int) snapshot.getGauge(FILES_IN_FLIGHT_GAUGE),
+                (int) snapshot.getCounter(UploadMetrics.FILES_FAILED),
+                String.format("\tRate: %.2f/minute %.2f MB/s\tUpload limit: %d/minute\tCurrent Album: '%s' Current File: '%s'",
+                        filesPerMinute(snapshot), bytesPerSecond / (1024 * 1024), snapshot.getGauge(UPLOAD_RATE_LIMIT_GAUGE),
+                        snapshot.getCurrentAlbum(), snapshot.getCurrentFile()));
+    }
+
+    private void writeMetricsFile(MetricsSnapshot snapshot) {
+        // Written to a temporary file and moved so a scraper never reads a partial file
+        File tmpFile = new File(metricsFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmpFile);
+                 Writer writer = new OutputStreamWriter(out, StandardCharsets.UTF_8)) {
+                writer.write(PrometheusTextFormat.format(snapshot, bytesPerSecond));
+            }
+            Files.move(tmpFile.toPath(), metricsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Unable to write metrics file {}", metricsFile, e);
+        }
+    }
+
+    private static double filesPerMinute(MetricsSnapshot snapshot) {
+        double elapsedMinutes = snapshot.getElapsedNanos() / (double) TimeUnit.MINUTES.toNanos(1);
+        return elapsedMinutes > 0 ? snapshot.getCounter(UploadMetrics.FILES_UPLOADED) / elapsedMinutes : 0;
+    }
+
+    private static String describeLatencies(MetricsSnapshot snapshot) {
+        StringBuilder description = new StringBuilder();
+        snapshot.getLatencies().forEach((latency, histogram) -> description
+                .append(description.length() > 0 ? ", " : "")
+                .append(latency.getMetricName())
+                .append(String.format(" %.1f/%.1f", histogram.getP50Micros() / 1000.0, histogram.getP99Micros() / 1000.0)));
+        return description.toString();
+    }
+
+    @Override
+    public long getBytesUploaded() {
+        return latest.getCounter(UploadMetrics.BYTES_UPLOADED);
+    }
+
+    @Override
+    public double getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public long getFilesUploaded() {
+        return latest.getCounter(UploadMetrics.FILES_UPLOADED);
+    }
+
+    @Override
+    public double getFilesPerMinute() {
+        return filesPerMinute(latest);
+    }
+
+    @Override
+    public long getFilesFailed() {
+        return latest.getCounter(UploadMetrics.FILES_FAILED);
+    }
+
+    @Override
+    public long getRetries() {
+        return latest.getCounter(UploadMetrics.RETRIES);
+    }
+
+    @Override
+    public Map<String, Long> getGauges() {
+        return latest.getGauges();
+    }
+
+    @Override
+    public Map<String, Long> getLatencyCounts() {
+        return latencyValues(HistogramSnapshot::getCount);
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP50Millis() {
+        Map<String, Double> values = new LinkedHashMap<>();
+        latencyValues(HistogramSnapshot::getP50Micros).forEach((name, micros) -> values.put(name, micros / 1000.0));
+        return values;
+    }
+
+    @Override
+    public Map<String, Double> getLatencyP99Millis() {
+        Map<String, Double> values = new LinkedHashMap<>();
+        latencyValues(HistogramSnapshot::getP99Micros).forEach((name, micros) -> values.put(name, micros / 1000.0));
+        return values;
+    }
+
+    private Map<String, Long> latencyValues(ToLongFunction<HistogramSnapshot> value) {
+        Map<String, Long> values = new LinkedHashMap<>();
+        latest.getLatencies().forEach((latency, histogram) -> values.put(latency.getMetricName(), value.applyAsLong(histogram)));
+        return values;
+    }
+}
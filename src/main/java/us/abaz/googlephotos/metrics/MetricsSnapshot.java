@@ -0,0 +1,27 @@
+package us.abaz.googlephotos.metrics;
+
+import lombok.Value;
+
+import java.util.Map;
+
+/**
+ * Point in time view of {@link UploadMetrics}
+ */
+@Value
+public class MetricsSnapshot {
+    // Time since the metrics were created
+    long elapsedNanos;
+    Map<String, Long> counters;
+    Map<String, Long> gauges;
+    Map<Latency, HistogramSnapshot> latencies;
+    String currentAlbum;
+    String currentFile;
+
+    public long getCounter(String name) {
+        return counters.getOrDefault(name, 0L);
+    }
+
+    public long getGauge(String name) {
+        return gauges.getOrDefault(name, 0L);
+    }
+}
@@ -0,0 +1,59 @@
+package us.abaz.googlephotos.metrics;
+
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Formats a {@link MetricsSnapshot} in the Prometheus text exposition format, for the node exporter textfile
+ * collector or any other scraper that reads a file
+ */
+class PrometheusTextFormat {
+    private static final String PREFIX = "googlephotos_";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99};
+
+    private PrometheusTextFormat() {
+    }
+
+    static String format(MetricsSnapshot snapshot, double bytesPerSecond) {
+        StringBuilder text = new StringBuilder();
+        appendFamily(text, snapshot.getCounters(), "counter");
+        appendFamily(text, snapshot.getGauges(), "gauge");
+        text.append("# TYPE ").append(PREFIX).append("upload_bytes_per_second gauge\n");
+        text.append(PREFIX).append("upload_bytes_per_second ").append(formatDouble(bytesPerSecond)).append('\n');
+
+        String latencyName = PREFIX + "latency_seconds";
+        text.append("# TYPE ").append(latencyName).append(" summary\n");
+        snapshot.getLatencies().forEach((latency, histogram) -> {
+            String label = "operation=\"" + latency.getMetricName() + "\"";
+            long[] quantileMicros = {histogram.getP50Micros(), histogram.getP90Micros(), histogram.getP99Micros()};
+            for (int i = 0; i < QUANTILES.length; i++) {
+                text.append(latencyName).append('{').append(label).append(",quantile=\"").append(QUANTILES[i]).append("\"} ")
+                        .append(formatDouble(quantileMicros[i] / 1e6)).append('\n');
+            }
+            text.append(latencyName).append("_sum{").append(label).append("} ")
+                    .append(formatDouble(histogram.getSumMicros() / 1e6)).append('\n');
+            text.append(latencyName).append("_count{").append(label).append("} ").append(histogram.getCount()).append('\n');
+        });
+        return text.toString();
+    }
+
+    /**
+     * Append metrics sorted by name so the samples of a labelled metric follow a single TYPE line
+     */
+    private static void appendFamily(StringBuilder text, Map<String, Long> values, String type) {
+        String lastFamily = null;
+        for (Map.Entry<String, Long> entry : values.entrySet()) {
+            int labelsIdx = entry.getKey().indexOf('{');
+            String family = labelsIdx != -1 ? entry.getKey().substring(0, labelsIdx) : entry.getKey();
+            if (!family.equals(lastFamily)) {
+                text.append("# TYPE ").append(PREFIX).append(family).append(' ').append(type).append('\n');
+                lastFamily = family;
+            }
+            text.append(PREFIX).append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+    }
+
+    private static String formatDouble(double value) {
+        return String.format(Locale.ROOT, "%.6f", value);
+    }
+}
@@ -0,0 +1,112 @@
+package us.abaz.googlephotos.metrics;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * The counters, gauges and latency histograms of an upload run.  Recording never takes a lock so it is safe on
+ * any thread in the pipeline - the figures are read through periodic {@link MetricsSnapshot}s.
+ */
+public class UploadMetrics {
+    public static final String BYTES_UPLOADED = "bytes_uploaded_total";
+    public static final String FILES_DISPATCHED = "files_dispatched_total";
+    public static final String FILES_UPLOADED = "files_uploaded_total";
+    public static final String FILES_FAILED = "files_failed_total";
+    public static final String RETRIES = "retries_total";
+
+    private final long startNanos = System.nanoTime();
+    private final Map<Latency, LatencyHistogram> latencies = new EnumMap<>(Latency.class);
+    private final LongAdder bytesUploaded = new LongAdder();
+    private final LongAdder filesDispatched = new LongAdder();
+    private final LongAdder filesUploaded = new LongAdder();
+    private final LongAdder filesFailed = new LongAdder();
+    private final LongAdder retries = new LongAdder();
+    private final Map<String, LongSupplier> externalCounters = new ConcurrentSkipListMap<>();
+    private final Map<String, LongSupplier> gauges = new ConcurrentSkipListMap<>();
+    private volatile String currentAlbum = "";
+    private volatile String currentFile = "";
+
+    public UploadMetrics() {
+        Arrays.stream(Latency.values()).forEach(latency -> latencies.put(latency, new LatencyHistogram()));
+    }
+
+    public void recordLatency(Latency latency, long nanos) {
+        latencies.get(latency).record(nanos);
+    }
+
+    public void recordBytesUploaded(long bytes) {
+        bytesUploaded.add(bytes);
+    }
+
+    public long getBytesUploaded() {
+        return bytesUploaded.sum();
+    }
+
+    /**
+     * Record a new file handed to the pipeline, along with the album and file shown on the console
+     */
+    public void recordDispatched(String albumName, String fileName) {
+        filesDispatched.increment();
+        setCurrentFile(albumName, fileName);
+    }
+
+    /**
+     * Update the album and file shown on the console without counting a new file
+     */
+    public void setCurrentFile(String albumName, String fileName) {
+        currentAlbum = albumName;
+        currentFile = fileName;
+    }
+
+    public void recordUploaded() {
+        filesUploaded.increment();
+    }
+
+    public void recordFailed() {
+        filesFailed.increment();
+    }
+
+    public void recordRetry() {
+        retries.increment();
+    }
+
+    /**
+     * Register a value read whenever a snapshot is taken, such as a queue depth
+     *
+     * @param name  The gauge name, optionally followed by Prometheus style labels - i.e. queue_depth{stage="transfer"}
+     * @param value Supplies the current value
+     */
+    public void registerGauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Register an ever increasing total kept elsewhere, such as the time spent waiting on a rate limiter
+     *
+     * @param name  The counter name, ending in _total and optionally followed by Prometheus style labels
+     * @param value Supplies the current total
+     */
+    public void registerCounter(String name, LongSupplier value) {
+        externalCounters.put(name, value);
+    }
+
+    public MetricsSnapshot snapshot() {
+        Map<String, Long> counters = new TreeMap<>();
+        counters.put(BYTES_UPLOADED, bytesUploaded.sum());
+        counters.put(FILES_DISPATCHED, filesDispatched.sum());
+        counters.put(FILES_UPLOADED, filesUploaded.sum());
+        counters.put(FILES_FAILED, filesFailed.sum());
+        counters.put(RETRIES, retries.sum());
+        externalCounters.forEach((name, value) -> counters.put(name, value.getAsLong()));
+        Map<String, Long> gaugeValues = new TreeMap<>();
+        gauges.forEach((name, value) -> gaugeValues.put(name, value.getAsLong()));
+        Map<Latency, HistogramSnapshot> histograms = new EnumMap<>(Latency.class);
+        latencies.forEach((latency, histogram) -> histograms.put(latency, histogram.snapshot()));
+        return new MetricsSnapshot(System.nanoTime() - startNanos, counters, gaugeValues, histograms, currentAlbum, currentFile);
+    }
+}
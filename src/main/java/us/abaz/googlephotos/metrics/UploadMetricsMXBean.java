@@ -0,0 +1,31 @@
+package us.abaz.googlephotos.metrics;
+
+import java.util.Map;
+
+/**
+ * JMX view of the latest metrics snapshot
+ */
+public interface UploadMetricsMXBean {
+    long getBytesUploaded();
+
+    double getBytesPerSecond();
+
+    long getFilesUploaded();
+
+    double getFilesPerMinute();
+
+    long getFilesFailed();
+
+    long getRetries();
+
+    /**
+     * @return Queue depths, files in flight and the other registered gauges
+     */
+    Map<String, Long> getGauges();
+
+    Map<String, Long> getLatencyCounts();
+
+    Map<String, Double> getLatencyP50Millis();
+
+    Map<String, Double> getLatencyP99Millis();
+}
@@ -1,40 +1,269 @@
 package us.abaz.googlephotos.process;
 
-import com.google.photos.library.v1.PhotosLibraryClient;
+import com.google.photos.library.v1.proto.ListAlbumsResponse;
 import com.google.photos.types.proto.Album;
+import lombok.extern.slf4j.Slf4j;
+import us.abaz.googlephotos.api.PhotosApi;
+import us.abaz.googlephotos.metrics.Latency;
+import us.abaz.googlephotos.metrics.UploadMetrics;
+import us.abaz.googlephotos.ratelimit.ApiEndpoint;
+import us.abaz.googlephotos.ratelimit.ApiRateLimiters;
 
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
-class AlbumManager {
-    private final Map<String, Album> existingAlbumMap = new ConcurrentHashMap<>();
-    private final PhotosLibraryClient photosLibraryClient;
-    private final AtomicBoolean initialized = new AtomicBoolean(false);
+/**
+ * Resolves album titles to albums.
+ * <p>
+ * Known albums are kept in a title to id cache on disk so startup does not list every album in the library.
+ * The library is only listed, once, when there is no usable cache - the API only adds to albums the app created,
+ * which the cache already holds - so with a cache a missing title is created straight away.  Lookups and
+ * creations are tracked as one future per title, so a creation in progress never blocks lookups of other titles,
+ * and {@link #prepareAlbums} starts them in parallel ahead of the uploads that need them.  An album the API
+ * stops accepting is evicted, so its title is resolved again, falling back to the listing if it was not done
+ * yet, and never taken from the listing again this run.
+ */
+@Slf4j
+class AlbumManager implements AutoCloseable {
+    private static final String ALBUM_CACHE_FILE = "GooglePhotoAlbumUploader_albums.txt";
+    private static final String SEPARATOR = "\t";
+    // Album creation is rate limited anyway - this only bounds the requests waiting on the limiter
+    private static final int CREATION_PARALLELISM = 4;
 
-    AlbumManager(PhotosLibraryClient photosLibraryClient) {
-        this.photosLibraryClient = photosLibraryClient;
+    private final Map<String, CompletableFuture<Album>> albumsByTitle = new ConcurrentHashMap<>();
+    private final Set<String> evictedAlbumIds = ConcurrentHashMap.newKeySet();
+    private final PhotosApi photosApi;
+    private final ApiRateLimiters rateLimiters;
+    private final UploadMetrics metrics;
+    private final File cacheFile;
+    private final ExecutorService creationExecutor = Executors.newFixedThreadPool(CREATION_PARALLELISM, runnable -> {
+        Thread thread = new Thread(runnable, "album-creation");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private volatile boolean listed = false;
+    private volatile boolean listingNeeded = false;
+    private volatile boolean cacheLoaded = false;
+    private PrintWriter cacheWriter;
+
+    AlbumManager(PhotosApi photosApi, ApiRateLimiters rateLimiters, UploadMetrics metrics, String tempStoragePath) {
+        this.photosApi = photosApi;
+        this.rateLimiters = rateLimiters;
+        this.metrics = metrics;
+        this.cacheFile = new File(tempStoragePath, ALBUM_CACHE_FILE);
     }
 
+    /**
+     * Get an album, waiting for it to be listed or created if it is not cached yet
+     */
     Album getOrCreateAlbum(String albumName) {
-        if (!initialized.get()) {
-            initializeAlbums();
+        long start = System.nanoTime();
+        try {
+            return getAlbumFuture(albumName).join();
+        } finally {
+            metrics.recordLatency(Latency.ALBUM_LOOKUP, System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Start resolving albums in the background so later lookups are served from memory
+     *
+     * @param albumNames The album titles that will be needed
+     */
+    void prepareAlbums(Collection<String> albumNames) {
+        albumNames.forEach(this::getAlbumFuture);
+    }
+
+    /**
+     * Forget an album the API no longer accepts, so the next lookup of its title lists the albums if that was
+     * not done yet this run, and otherwise creates the album again
+     *
+     * @param albumId The id of the album that was refused
+     */
+    void evictAlbum(String albumId) {
+        if (evictedAlbumIds.add(albumId)) {
+            boolean evicted = albumsByTitle.values().removeIf(albumFuture -> albumFuture.isDone()
+                    && !albumFuture.isCompletedExceptionally() && albumFuture.join().getId().equals(albumId));
+            if (evicted) {
+                log.warn("Album {} is no longer available - resolving its title again", albumId);
+                listingNeeded = true;
+                saveCache();
+            }
         }
-        return existingAlbumMap.computeIfAbsent(albumName, this::createAlbum);
     }
 
-    private Album createAlbum(String albumName) {
-        return photosLibraryClient.createAlbum(albumName);
+    @Override
+    public void close() {
+        creationExecutor.shutdownNow();
+        synchronized (cacheFile) {
+            if (cacheWriter != null) {
+                cacheWriter.close();
+            }
+        }
     }
 
-    private void initializeAlbums() {
-        synchronized (initialized) {
-            if (!initialized.get()) {
-                for (Album element : photosLibraryClient.listAlbums(false).iterateAll()) {
-                    existingAlbumMap.put(element.getTitle(), element);
+    private CompletableFuture<Album> getAlbumFuture(String albumName) {
+        ensureCacheLoaded();
+        CompletableFuture<Album> albumFuture = albumsByTitle.get(albumName);
+        if (albumFuture == null) {
+            CompletableFuture<Album> newFuture = new CompletableFuture<>();
+            albumFuture = albumsByTitle.putIfAbsent(albumName, newFuture);
+            if (albumFuture == null) {
+                // Resolve outside of the map so other titles are not held up by this request
+                albumFuture = newFuture;
+                creationExecutor.execute(() -> resolveAlbum(albumName, newFuture));
+            }
+        }
+        return albumFuture;
+    }
+
+    private void resolveAlbum(String albumName, CompletableFuture<Album> albumFuture) {
+        try {
+            if (listingNeeded) {
+                listAlbums();
+            }
+            if (!albumFuture.isDone()) {
+                Album album = rateLimiters.call(ApiEndpoint.CREATE_ALBUM, () -> photosApi.createAlbum(albumName));
+                log.debug("Created album {}", albumName);
+                appendToCache(album);
+                albumFuture.complete(album);
+            }
+        } catch (Exception e) {
+            // Let a later lookup try again
+            albumsByTitle.remove(albumName, albumFuture);
+            albumFuture.completeExceptionally(e);
+        }
+    }
+
+    /**
+     * List every album once per run, completing any lookups waiting on a listed title, then rewrite the cache
+     * without the cached albums that no longer exist
+     */
+    private synchronized void listAlbums() {
+        if (listed) {
+            return;
+        }
+        log.info("Refreshing album cache from the album listing");
+        Set<String> listedTitles = new HashSet<>();
+        // Each page of the listing is a separate request so charge the rate limiter per page
+        String pageToken = "";
+        do {
+            String curPageToken = pageToken;
+            ListAlbumsResponse page = rateLimiters.call(ApiEndpoint.LIST_ALBUMS, () -> photosApi.listAlbums(curPageToken));
+            for (Album album : page.getAlbumsList()) {
+                addAlbum(album);
+                listedTitles.add(album.getTitle());
+            }
+            pageToken = page.getNextPageToken();
+        } while (!pageToken.isEmpty());
+        albumsByTitle.entrySet().removeIf(entry -> entry.getValue().isDone() && !listedTitles.contains(entry.getKey()));
+        listed = true;
+        saveCache();
+    }
+
+    private void addAlbum(Album album) {
+        if (evictedAlbumIds.contains(album.getId())) {
+            return;
+        }
+        CompletableFuture<Album> albumFuture = albumsByTitle.putIfAbsent(album.getTitle(), CompletableFuture.completedFuture(album));
+        if (albumFuture != null && !albumFuture.complete(album)) {
+            // Already resolved from an older source - the latest album for the title wins
+            albumsByTitle.put(album.getTitle(), CompletableFuture.completedFuture(album));
+        }
+    }
+
+    /**
+     * Load the cache on the first lookup, so a run with nothing to upload never reads it.  Without a usable
+     * cache the library is listed before the first album is created.
+     */
+    private void ensureCacheLoaded() {
+        if (!cacheLoaded) {
+            synchronized (cacheFile) {
+                if (!cacheLoaded) {
+                    try {
+                        listingNeeded = !loadCache();
+                    } catch (IOException e) {
+                        log.warn("Unable to read album cache {} - listing the albums instead", cacheFile, e);
+                        albumsByTitle.clear();
+                        listingNeeded = true;
+                    }
+                    cacheLoaded = true;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return Whether there was a cache to load
+     */
+    private boolean loadCache() throws IOException {
+        if (!cacheFile.exists()) {
+            return false;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(cacheFile, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, 2);
+                if (fields.length == 2) {
+                    addAlbum(Album.newBuilder().setId(fields[0]).setTitle(fields[1]).build());
+                }
+            }
+        }
+        log.info("Loaded {} cached album(s)", albumsByTitle.size());
+        return true;
+    }
+
+    private void appendToCache(Album album) {
+        synchronized (cacheFile) {
+            try {
+                if (cacheWriter == null) {
+                    cacheWriter = new PrintWriter(new BufferedWriter(new FileWriter(cacheFile, StandardCharsets.UTF_8, true)));
                 }
-                initialized.set(true);
+                cacheWriter.println(toCacheLine(album));
+                cacheWriter.flush();
+            } catch (IOException e) {
+                log.warn("Unable to add album {} to the album cache", album.getTitle(), e);
             }
         }
     }
+
+    /**
+     * Rewrite the cache with every known album
+     */
+    private void saveCache() {
+        synchronized (cacheFile) {
+            if (cacheWriter != null) {
+                cacheWriter.close();
+                cacheWriter = null;
+            }
+            File tmpFile = new File(cacheFile.getPath() + ".tmp");
+            try {
+                try (FileOutputStream out = new FileOutputStream(tmpFile);
+                     PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+                    albumsByTitle.values().stream()
+                            .filter(albumFuture -> albumFuture.isDone() && !albumFuture.isCompletedExceptionally())
+                            .forEach(albumFuture -> writer.println(toCacheLine(albumFuture.join())));
+                    writer.flush();
+                    out.getFD().sync();
+                }
+                Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } catch (IOException e) {
+                log.warn("Unable to save album cache to {}", cacheFile, e);
+            }
+        }
+    }
+
+    private static String toCacheLine(Album album) {
+        return album.getId() + SEPARATOR + album.getTitle().replaceAll("[\\r\\n]+", " ");
+    }
 }
@@ -0,0 +1,19 @@
+package us.abaz.googlephotos.process;
+
+import lombok.Getter;
+
+/**
+ * Media items that could not be created because the API no longer accepts their album - it was deleted, or the
+ * app may no longer add to it.  Retrying with the album resolved again may succeed.
+ */
+@Getter
+class AlbumUnavailableException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final String albumId;
+
+    AlbumUnavailableException(String albumId, Throwable cause) {
+        super("Album " + albumId + " is no longer available", cause);
+        this.albumId = albumId;
+    }
+}
@@ -0,0 +1,296 @@
+package us.abaz.googlephotos.process;
+
+import lombok.extern.slf4j.Slf4j;
+import us.abaz.googlephotos.metrics.Latency;
+import us.abaz.googlephotos.metrics.UploadMetrics;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+/**
+ * Append only journal of completed uploads with group commit.
+ * <p>
+ * Completions are queued without taking a lock and a single writer thread appends everything queued since its
+ * last pass in one write followed by one fsync.  Each record is framed as [length][crc32][utf-8 complete file
+ * name] so a record torn by a crash is detected on replay, where it and anything after it are discarded.  A group
+ * whose write fails is cut back off the end of the file and written again with the next group, so a failure
+ * neither loses its records nor leaves a torn record for later groups to be appended after.
+ * <p>
+ * A long running process can {@link #rotate()} the journal - the writer moves the committed records to a sealed
+ * segment and carries on in a fresh file, so the sealed segment can be compacted while appends continue.
+ */
+@Slf4j
+class CompletionJournal implements AutoCloseable {
+    private static final int RECORD_HEADER_BYTES = 2 * Integer.BYTES;
+    // No file name comes close to this - anything larger is a torn or corrupt length
+    private static final int MAX_RECORD_BYTES = 64 * 1024;
+    private static final long IDLE_PARK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    private static final String SEALED_SUFFIX = ".sealed";
+
+    private final File journalFile;
+    private final Queue<String> pending = new ConcurrentLinkedQueue<>();
+    private final Thread writerThread;
+    private final UploadMetrics metrics;
+    // Only touched by the writer thread, and by close once the writer has stopped
+    private final List<String> unwritten = new ArrayList<>();
+    private FileChannel channel;
+    private long committedBytes;
+    private volatile CompletableFuture<Void> pendingRotation;
+    private volatile boolean running = true;
+
+    CompletionJournal(File journalFile, UploadMetrics metrics) throws IOException {
+        this.journalFile = journalFile;
+        this.metrics = metrics;
+        this.channel = openChannel(journalFile);
+        this.committedBytes = channel.size();
+        this.writerThread = new Thread(this::writeLoop, "completion-journal");
+        this.writerThread.setDaemon(true);
+        this.writerThread.start();
+    }
+
+    /**
+     * Queue a completed file name - returns immediately, the record is made durable by the next group commit
+     */
+    void append(String completeFilename) {
+        pending.add(completeFilename);
+        LockSupport.unpark(writerThread);
+    }
+
+    /**
+     * Move every record queued so far to the sealed segment of this journal and start a fresh file, waiting for
+     * the writer to do so.  Appends carry on meanwhile.  Only one rotation may run at a time, and the sealed
+     * segment of the previous one must have been compacted and removed.
+     */
+    void rotate() throws IOException {
+        CompletableFuture<Void> rotation = new CompletableFuture<>();
+        pendingRotation = rotation;
+        LockSupport.unpark(writerThread);
+        if (!running) {
+            rotation.completeExceptionally(new IOException("Completion journal " + journalFile + " is closed"));
+        }
+        try {
+            rotation.join();
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * @return The sealed segment a journal is rotated into, replayed before the journal itself
+     */
+    static File sealedSegment(File journalFile) {
+        return new File(journalFile.getPath() + SEALED_SUFFIX);
+    }
+
+    /**
+     * Stop the writer after committing everything queued so far
+     */
+    @Override
+    public void close() {
+        running = false;
+        LockSupport.unpark(writerThread);
+        try {
+            writerThread.join();
+            CompletableFuture<Void> rotation = pendingRotation;
+            if (rotation != null) {
+                rotation.completeExceptionally(new IOException("Completion journal " + journalFile + " is closed"));
+            }
+            // Anything queued after the writer's final pass, or left by a failed one
+            commitPending();
+        } catch (Exception e) {
+            log.error("Unable to write {} completion(s) to {} - those files will be uploaded again",
+                    unwritten.size(), journalFile, e);
+        }
+        try {
+            channel.close();
+        } catch (IOException e) {
+            log.error("Error closing completion journal " + journalFile, e);
+        }
+    }
+
+    /**
+     * Replay the intact records of a journal, truncating a torn tail left by a crash
+     *
+     * @param journalFile The journal to replay
+     * @param consumer    Receives each complete file name in order
+     * @return The number of records replayed
+     */
+    static int replay(File journalFile, Consumer<String> consumer) throws IOException {
+        return replay(journalFile, consumer, true);
+    }
+
+    /**
+     * Read the intact records of a journal another process may still be appending to, leaving the file as is
+     *
+     * @param journalFile The journal to read
+     * @param consumer    Receives each complete file name in order
+     * @return The number of records read
+     */
+    static int read(File journalFile, Consumer<String> consumer) throws IOException {
+        return replay(journalFile, consumer, false);
+    }
+
+    private static int replay(File journalFile, Consumer<String> consumer, boolean truncateTornTail) throws IOException {
+        if (!journalFile.exists()) {
+            return 0;
+        }
+        int records = 0;
+        StandardOpenOption[] openOptions = truncateTornTail
+                ? new StandardOpenOption[]{StandardOpenOption.READ, StandardOpenOption.WRITE}
+                : new StandardOpenOption[]{StandardOpenOption.READ};
+        try (FileChannel readChannel = FileChannel.open(journalFile.toPath(), openOptions)) {
+            long size = readChannel.size();
+            ByteBuffer buffer = readChannel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            CRC32 crc = new CRC32();
+            long validBytes = 0;
+            while (buffer.remaining() >= RECORD_HEADER_BYTES) {
+                int length = buffer.getInt();
+                int expectedCrc = buffer.getInt();
+                if (length <= 0 || length > MAX_RECORD_BYTES || length > buffer.remaining()) {
+                    break;
+                }
+                byte[] bytes = new byte[length];
+                buffer.get(bytes);
+                crc.reset();
+                crc.update(bytes);
+                if ((int) crc.getValue() != expectedCrc) {
+                    break;
+                }
+                consumer.accept(new String(bytes, StandardCharsets.UTF_8));
+                validBytes = buffer.position();
+                records++;
+            }
+            if (validBytes < size && truncateTornTail) {
+                log.warn("Ignoring {} bytes of torn record(s) at the end of {}", size - validBytes, journalFile);
+                readChannel.truncate(validBytes);
+            }
+        }
+        return records;
+    }
+
+    /**
+     * Empty a journal once its records have been compacted elsewhere
+     */
+    static void reset(File journalFile) throws IOException {
+        if (journalFile.exists()) {
+            try (FileChannel resetChannel = FileChannel.open(journalFile.toPath(), StandardOpenOption.WRITE)) {
+                resetChannel.truncate(0);
+                resetChannel.force(true);
+            }
+        }
+    }
+
+    private void writeLoop() {
+        while (running) {
+            CompletableFuture<Void> rotation = pendingRotation;
+            try {
+                if (rotation != null) {
+                    // Everything queued before the rotation was requested goes into the sealed segment
+                    commitPending();
+                    seal();
+                    pendingRotation = null;
+                    rotation.complete(null);
+                } else if (!commitPending()) {
+                    LockSupport.parkNanos(IDLE_PARK_NANOS);
+                }
+            } catch (IOException e) {
+                if (rotation != null) {
+                    // Reported by the caller - any unwritten completions are retried with the next group
+                    pendingRotation = null;
+                    rotation.completeExceptionally(e);
+                } else {
+                    log.error("Error writing completion journal {} - retrying {} completion(s)", journalFile, unwritten.size(), e);
+                }
+                LockSupport.parkNanos(IDLE_PARK_NANOS);
+            }
+        }
+    }
+
+    /**
+     * Move the committed records to the sealed segment and continue in a fresh file - or in the same file if the
+     * move fails
+     */
+    private void seal() throws IOException {
+        File sealedFile = sealedSegment(journalFile);
+        if (sealedFile.exists()) {
+            throw new IOException("Sealed journal segment " + sealedFile + " has not been compacted yet");
+        }
+        channel.close();
+        try {
+            Files.move(journalFile.toPath(), sealedFile.toPath(), StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            channel = openChannel(journalFile);
+            committedBytes = channel.size();
+        }
+    }
+
+    private static FileChannel openChannel(File journalFile) throws IOException {
+        return FileChannel.open(journalFile.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+    }
+
+    /**
+     * Write and fsync every queued record as one group, after any group whose write failed.  On failure the group
+     * is kept for the next attempt, which first cuts the file back to the end of the last committed group.
+     *
+     * @return True if anything was written
+     */
+    private boolean commitPending() throws IOException {
+        String completeFilename;
+        while ((completeFilename = pending.poll()) != null) {
+            unwritten.add(completeFilename);
+        }
+        if (unwritten.isEmpty()) {
+            return false;
+        }
+
+        List<byte[]> group = new ArrayList<>(unwritten.size());
+        int groupBytes = 0;
+        for (String filename : unwritten) {
+            byte[] bytes = filename.getBytes(StandardCharsets.UTF_8);
+            group.add(bytes);
+            groupBytes += RECORD_HEADER_BYTES + bytes.length;
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(groupBytes);
+        CRC32 crc = new CRC32();
+        for (byte[] bytes : group) {
+            crc.reset();
+            crc.update(bytes);
+            buffer.putInt(bytes.length).putInt((int) crc.getValue()).put(bytes);
+        }
+        buffer.flip();
+        long start = System.nanoTime();
+        if (channel.size() > committedBytes) {
+            // Part of a failed group - replay would stop there and drop everything appended after it
+            channel.truncate(committedBytes);
+        }
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        channel.force(false);
+        committedBytes = channel.size();
+        metrics.recordLatency(Latency.JOURNAL_WRITE, System.nanoTime() - start);
+        log.trace("Committed {} completion(s) to {}", unwritten.size(), journalFile);
+        unwritten.clear();
+        return true;
+    }
+}
@@ -0,0 +1,274 @@
+package us.abaz.googlephotos.process;
+
+import com.google.common.hash.HashCode;
+import com.google.common.hash.Hashing;
+import com.google.common.io.Files;
+import lombok.AllArgsConstructor;
+import lombok.SneakyThrows;
+import lombok.extern.slf4j.Slf4j;
+import us.abaz.googlephotos.mediafinder.MediaFile;
+import us.abaz.googlephotos.util.LongHashSet;
+import us.abaz.googlephotos.util.PhotoUploadConfig;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Skips byte uploads of content that has already been uploaded, regardless of the path it was uploaded from.
+ * <p>
+ * Content hashes are cached per (path, size, modification time) so an unchanged file is only ever hashed once.
+ * In memory the cache is keyed on the same 64 bit path fingerprint as the {@link ProcessedFileIndex}, with the
+ * hashes held as bytes, so it stays small at millions of files.
+ * Hashing runs on a dedicated pool a fixed number of files ahead of the dispatch loop, which takes files in the
+ * order their hashes finish so one large video does not hold up the files behind it.  The media item created
+ * for each content hash is recorded so a later duplicate can be added to its album instead of uploaded again.
+ * Duplicates that are in flight at the same time within one run are both uploaded.
+ */
+@Slf4j
+class ContentDeduplicator implements AutoCloseable {
+    private static final String FINGERPRINT_CACHE = "GooglePhotoAlbumUploader_fingerprints.txt";
+    private static final String UPLOADED_CONTENT = "GooglePhotoAlbumUploader_content.txt";
+    private static final String SEPARATOR = "\t";
+    private static final String REMOVED = "-";
+    // Number of files hashed ahead of the dispatch loop per hashing thread
+    private static final int LOOKAHEAD_PER_THREAD = 4;
+
+    private final Supplier<MediaFile> fileSource;
+    private final ExecutorService hashExecutor;
+    private final int lookahead;
+    private final CompletionService<MediaFile> hashedFiles;
+    private int hashingCount = 0;
+    // Keyed on the fingerprint of the complete file name
+    private final Map<Long, Fingerprint> fingerprintsByPath = new ConcurrentHashMap<>();
+    private final Map<HashCode, String> mediaItemIdsByHash = new ConcurrentHashMap<>();
+    private final PrintWriter fingerprintWriter;
+    private final PrintWriter uploadedContentWriter;
+
+    /**
+     * @param config     The upload configuration
+     * @param fileSource Supplies the files to upload, returning null when there are no more
+     */
+    @SneakyThrows
+    ContentDeduplicator(PhotoUploadConfig config, Supplier<MediaFile> fileSource) {
+        this.fileSource = fileSource;
+        int hashParallelism = Math.max(1, config.getHashParallelism());
+        this.lookahead = hashParallelism * LOOKAHEAD_PER_THREAD;
+        AtomicInteger threadCount = new AtomicInteger(0);
+        this.hashExecutor = Executors.newFixedThreadPool(hashParallelism, runnable -> {
+            Thread thread = new Thread(runnable, "content-hash-" + threadCount.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.hashedFiles = new ExecutorCompletionService<>(hashExecutor);
+
+        File fingerprintCache = new File(config.getStatePath(), FINGERPRINT_CACHE);
+        File uploadedContent = new File(config.getStatePath(), UPLOADED_CONTENT);
+        int fingerprintRecords = readRecords(fingerprintCache, 4, fields ->
+                fingerprintsByPath.put(ProcessedFileIndex.fingerprint(fields[3]), parseFingerprint(fields)));
+        int uploadedContentRecords = readRecords(uploadedContent, 2, fields -> {
+            if (REMOVED.equals(fields[1])) {
+                mediaItemIdsByHash.remove(HashCode.fromString(fields[0]));
+            } else {
+                mediaItemIdsByHash.put(HashCode.fromString(fields[0]), fields[1]);
+            }
+        });
+        log.info("Loaded {} cached content fingerprints and {} uploaded content hashes", fingerprintsByPath.size(), mediaItemIdsByHash.size());
+        // Both files are appended to on every re-hash or change - drop the superseded records
+        if (fingerprintRecords > fingerprintsByPath.size()) {
+            // The paths are only on disk, so the latest record of each is copied from there
+            LongHashSet copiedPaths = new LongHashSet();
+            try (Stream<String> lines = java.nio.file.Files.lines(fingerprintCache.toPath(), StandardCharsets.UTF_8)) {
+                rewrite(fingerprintCache, lines.filter(line -> isLatestFingerprint(line, copiedPaths)));
+            }
+        }
+        if (uploadedContentRecords > mediaItemIdsByHash.size()) {
+            rewrite(uploadedContent, mediaItemIdsByHash.entrySet().stream().map(entry -> entry.getKey() + SEPARATOR + entry.getValue()));
+        }
+        fingerprintWriter = new PrintWriter(new BufferedWriter(new FileWriter(fingerprintCache, StandardCharsets.UTF_8, true)));
+        uploadedContentWriter = new PrintWriter(new BufferedWriter(new FileWriter(uploadedContent, StandardCharsets.UTF_8, true)));
+    }
+
+    /**
+     * Get the next file from the source whose content hash is known - whichever of the files being hashed finishes
+     * first
+     *
+     * @return The next file or null once the source is exhausted, or has nothing for now in watch mode
+     */
+    @SneakyThrows
+    MediaFile getNextFile() {
+        while (hashingCount < lookahead) {
+            MediaFile mediaFile = fileSource.get();
+            if (mediaFile == null) {
+                break;
+            }
+            hashedFiles.submit(() -> fingerprint(mediaFile));
+            hashingCount++;
+        }
+        if (hashingCount == 0) {
+            return null;
+        }
+        hashingCount--;
+        return hashedFiles.take().get();
+    }
+
+    /**
+     * @param mediaFile A file returned by {@link #getNextFile()}
+     * @return The id of a media item already created with the same content, or null
+     */
+    String findUploadedMediaItemId(MediaFile mediaFile) {
+        Fingerprint fingerprint = fingerprintsByPath.get(ProcessedFileIndex.fingerprint(mediaFile));
+        return fingerprint != null ? mediaItemIdsByHash.get(fingerprint.contentHash) : null;
+    }
+
+    /**
+     * Record the media item created for a file so later copies of its content are not uploaded
+     */
+    void recordUploaded(MediaFile mediaFile, String mediaItemId) {
+        Fingerprint fingerprint = fingerprintsByPath.get(ProcessedFileIndex.fingerprint(mediaFile));
+        if (fingerprint != null && mediaItemId != null
+                && mediaItemIdsByHash.putIfAbsent(fingerprint.contentHash, mediaItemId) == null) {
+            synchronized (uploadedContentWriter) {
+                uploadedContentWriter.println(fingerprint.contentHash + SEPARATOR + mediaItemId);
+                uploadedContentWriter.flush();
+            }
+        }
+    }
+
+    /**
+     * Forget the media item recorded for a file's content once it could not be added to an album - it may have
+     * been deleted - so the file and later copies of its content are uploaded instead
+     */
+    void forgetUploaded(MediaFile mediaFile, String mediaItemId) {
+        Fingerprint fingerprint = fingerprintsByPath.get(ProcessedFileIndex.fingerprint(mediaFile));
+        if (fingerprint != null && mediaItemIdsByHash.remove(fingerprint.contentHash, mediaItemId)) {
+            log.info("Forgetting media item {} for the content of {}", mediaItemId, mediaFile.getCompleteFilename());
+            synchronized (uploadedContentWriter) {
+                uploadedContentWriter.println(fingerprint.contentHash + SEPARATOR + REMOVED);
+                uploadedContentWriter.flush();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        hashExecutor.shutdownNow();
+        synchronized (fingerprintWriter) {
+            fingerprintWriter.close();
+        }
+        synchronized (uploadedContentWriter) {
+            uploadedContentWriter.close();
+        }
+    }
+
+    /**
+     * Make sure the content hash of a file is cached, hashing it only if its size or modification time changed
+     */
+    private MediaFile fingerprint(MediaFile mediaFile) {
+        String path = mediaFile.getCompleteFilename();
+        try {
+            File file = new File(path);
+            long size = mediaFile.getFileSize() > 0 ? mediaFile.getFileSize() : file.length();
+            long lastModified = mediaFile.getLastModified() > 0 ? mediaFile.getLastModified() : file.lastModified();
+            long pathFingerprint = ProcessedFileIndex.fingerprint(mediaFile);
+            Fingerprint cached = fingerprintsByPath.get(pathFingerprint);
+            if (cached == null || cached.size != size || cached.lastModified != lastModified) {
+                HashCode contentHash = Files.asByteSource(file).hash(Hashing.sha256());
+                Fingerprint fingerprint = new Fingerprint(size, lastModified, contentHash);
+                fingerprintsByPath.put(pathFingerprint, fingerprint);
+                synchronized (fingerprintWriter) {
+                    fingerprintWriter.println(toFingerprintLine(path, fingerprint));
+                    fingerprintWriter.flush();
+                }
+            }
+        } catch (IOException e) {
+            // The upload itself reports the failure
+            log.warn("Unable to hash {}: {}", path, e.getMessage());
+        }
+        return mediaFile;
+    }
+
+    private static String toFingerprintLine(String path, Fingerprint fingerprint) {
+        return fingerprint.size + SEPARATOR + fingerprint.lastModified + SEPARATOR + fingerprint.contentHash + SEPARATOR + path;
+    }
+
+    private static Fingerprint parseFingerprint(String[] fields) {
+        return new Fingerprint(Long.parseLong(fields[0]), Long.parseLong(fields[1]), HashCode.fromString(fields[2]));
+    }
+
+    /**
+     * Whether a fingerprint cache line is the record loaded for its path, and the first copy of it
+     */
+    private boolean isLatestFingerprint(String line, LongHashSet copiedPaths) {
+        String[] fields = line.split(SEPARATOR, 4);
+        if (fields.length != 4) {
+            return false;
+        }
+        try {
+            long pathFingerprint = ProcessedFileIndex.fingerprint(fields[3]);
+            Fingerprint loaded = fingerprintsByPath.get(pathFingerprint);
+            Fingerprint fingerprint = parseFingerprint(fields);
+            return loaded != null && loaded.size == fingerprint.size && loaded.lastModified == fingerprint.lastModified
+                    && loaded.contentHash.equals(fingerprint.contentHash) && copiedPaths.add(pathFingerprint);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Replace a record file with the current records, through a temporary file so a crash leaves either version
+     */
+    private static void rewrite(File file, Stream<String> lines) throws IOException {
+        File tmpFile = new File(file.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile);
+             PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            lines.forEach(writer::println);
+            writer.flush();
+            out.getFD().sync();
+        }
+        java.nio.file.Files.move(tmpFile.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return The number of records read
+     */
+    private static int readRecords(File file, int fieldCount, Consumer<String[]> recordConsumer) throws IOException {
+        if (!file.exists()) {
+            return 0;
+        }
+        int records = 0;
+        try (BufferedReader reader = new BufferedReader(new FileReader(file, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, fieldCount);
+                // A torn last line from an interrupted run is skipped
+                if (fields.length == fieldCount) {
+                    try {
+                        recordConsumer.accept(fields);
+                    } catch (IllegalArgumentException e) {
+                        log.debug("Skipping malformed record in {}: {}", file, line);
+                    }
+                }
+                records++;
+            }
+        }
+        return records;
+    }
+
+    @AllArgsConstructor
+    private static class Fingerprint {
+        private final long size;
+        private final long lastModified;
+        private final HashCode contentHash;
+    }
+}
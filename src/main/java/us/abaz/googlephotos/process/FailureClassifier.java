@@ -0,0 +1,86 @@
+package us.abaz.googlephotos.process;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import com.google.rpc.Code;
+import org.apache.http.client.HttpResponseException;
+
+import java.io.FileNotFoundException;
+import java.nio.file.NoSuchFileException;
+import java.util.EnumSet;
+import java.util.Set;
+
+/**
+ * Decides whether a failed upload is worth retrying
+ */
+class FailureClassifier {
+    enum FailureType {
+        // Network errors, 5xx and quota responses - retrying later may succeed
+        TRANSIENT,
+        // Vanished files and rejected content - retrying will fail the same way
+        PERMANENT
+    }
+
+    private static final Set<StatusCode.Code> PERMANENT_API_CODES = EnumSet.of(
+            StatusCode.Code.INVALID_ARGUMENT,
+            StatusCode.Code.NOT_FOUND,
+            StatusCode.Code.PERMISSION_DENIED,
+            StatusCode.Code.FAILED_PRECONDITION,
+            StatusCode.Code.UNAUTHENTICATED,
+            StatusCode.Code.UNIMPLEMENTED);
+    private static final Set<Code> PERMANENT_RESULT_CODES = EnumSet.of(
+            Code.INVALID_ARGUMENT,
+            Code.NOT_FOUND,
+            Code.PERMISSION_DENIED,
+            Code.FAILED_PRECONDITION,
+            Code.UNAUTHENTICATED,
+            Code.UNIMPLEMENTED);
+    private static final Set<StatusCode.Code> ALBUM_REJECTED_API_CODES = EnumSet.of(
+            StatusCode.Code.INVALID_ARGUMENT,
+            StatusCode.Code.NOT_FOUND);
+
+    /**
+     * Classify a failure by the first recognisable cause in its chain - anything unrecognised is treated as
+     * transient so it gets another chance
+     */
+    static FailureType classify(Throwable failure) {
+        for (Throwable cur = failure; cur != null; cur = cur.getCause()) {
+            if (cur instanceof AlbumUnavailableException) {
+                // Retried once the album is resolved again
+                return FailureType.TRANSIENT;
+            }
+            if (cur instanceof FileNotFoundException || cur instanceof NoSuchFileException) {
+                return FailureType.PERMANENT;
+            }
+            if (cur instanceof MediaItemCreationException) {
+                return PERMANENT_RESULT_CODES.contains(((MediaItemCreationException) cur).getStatusCode())
+                        ? FailureType.PERMANENT
+                        : FailureType.TRANSIENT;
+            }
+            if (cur instanceof ApiException) {
+                return PERMANENT_API_CODES.contains(((ApiException) cur).getStatusCode().getCode())
+                        ? FailureType.PERMANENT
+                        : FailureType.TRANSIENT;
+            }
+            if (cur instanceof HttpResponseException) {
+                int status = ((HttpResponseException) cur).getStatusCode();
+                return status >= 400 && status < 500 && status != 408 && status != 429
+                        ? FailureType.PERMANENT
+                        : FailureType.TRANSIENT;
+            }
+        }
+        return FailureType.TRANSIENT;
+    }
+
+    /**
+     * Whether a call failing as a whole for the album it names was refused because of that album
+     */
+    static boolean isAlbumRejected(Throwable failure) {
+        for (Throwable cur = failure; cur != null; cur = cur.getCause()) {
+            if (cur instanceof ApiException) {
+                return ALBUM_REJECTED_API_CODES.contains(((ApiException) cur).getStatusCode().getCode());
+            }
+        }
+        return false;
+    }
+}
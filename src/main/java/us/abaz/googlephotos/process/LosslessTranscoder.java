@@ -0,0 +1,246 @@
+package us.abaz.googlephotos.process;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import us.abaz.googlephotos.mediafinder.MediaFile;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+import javax.imageio.metadata.IIOMetadata;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.color.ColorSpace;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.Raster;
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Re-encodes uncompressed BMP and TIFF images as PNG before upload when that sends fewer bytes.
+ * <p>
+ * The PNG is only used when it decodes to exactly the same samples as the original and is smaller than it.
+ * Multi-page TIFFs, TIFFs carrying EXIF, a capture date, a colour profile, XMP, IPTC or a description, and images
+ * in any colour space but sRGB or plain gray are left alone, as PNG would drop the other pages or the metadata, or
+ * the same samples would show different colours.  PNGs are written to a directory under the state path and count
+ * against a size cap until their upload finishes - a transcode waits for space rather than filling the disk.
+ */
+@Slf4j
+class LosslessTranscoder implements AutoCloseable {
+    static final String PNG_MIME_TYPE = "image/png";
+    private static final Set<String> SOURCE_MIME_TYPES = Set.of("image/bmp", "image/x-ms-bmp", "image/tiff");
+    private static final String TRANSCODE_DIRECTORY = "transcoded";
+    private static final String TIFF_METADATA_FORMAT = "javax_imageio_tiff_image_1.0";
+    // TIFF tags whose values would be lost - ImageDescription, DateTime, XMP, IPTC, the EXIF IFD, the GPS IFD and
+    // the ICC profile
+    private static final Set<String> PRESERVED_TIFF_TAGS = Set.of("270", "306", "700", "33723", "34665", "34853", "34675");
+    // The decoded image is held in memory, at up to a few times the size of an uncompressed file
+    private static final long MAX_SOURCE_BYTES = 256 * FileUtils.ONE_MB;
+
+    private final File directory;
+    private final long capBytes;
+    private final AtomicInteger fileCount = new AtomicInteger();
+    private final AtomicLong transcodedCount = new AtomicLong();
+    private final AtomicLong bytesSaved = new AtomicLong();
+    private long reservedBytes = 0;
+
+    /**
+     * @param statePath The directory the transcoded files are written under
+     * @param capBytes  Maximum bytes of transcoded files waiting for upload
+     */
+    LosslessTranscoder(String statePath, long capBytes) throws IOException {
+        this.directory = new File(statePath, TRANSCODE_DIRECTORY);
+        this.capBytes = capBytes;
+        // Anything left by a run that was killed
+        if (directory.exists()) {
+            FileUtils.cleanDirectory(directory);
+        }
+        FileUtils.forceMkdir(directory);
+        log.info("Re-encoding BMP and TIFF images as PNG when smaller, using up to {} MB in {}", capBytes / FileUtils.ONE_MB, directory);
+    }
+
+    /**
+     * @return Whether files of a mime type may be re-encoded
+     */
+    boolean isCandidate(String mimeType) {
+        return SOURCE_MIME_TYPES.contains(mimeType);
+    }
+
+    /**
+     * Re-encode a file as PNG, waiting while the transcoded files waiting for upload are at the size cap
+     *
+     * @param mediaFile The BMP or TIFF file
+     * @param size      The file size
+     * @return The PNG to upload instead, to be passed to {@link #release} once uploaded, or null to upload the
+     * original - when re-encoding would lose anything, would not save bytes or fails
+     */
+    File transcode(MediaFile mediaFile, long size) throws InterruptedException {
+        if (size > MAX_SOURCE_BYTES || size > capBytes) {
+            return null;
+        }
+        // The PNG is only kept when smaller, so the original size bounds the space it needs
+        reserve(size);
+        File pngFile = new File(directory, fileCount.incrementAndGet() + ".png");
+        long keptBytes = 0;
+        try {
+            BufferedImage image = readLosslessCandidate(new File(mediaFile.getCompleteFilename()));
+            if (image != null && ImageIO.write(image, "png", pngFile) && pngFile.length() < size
+                    && samplesEqual(image, ImageIO.read(pngFile))) {
+                keptBytes = pngFile.length();
+                transcodedCount.incrementAndGet();
+                bytesSaved.addAndGet(size - keptBytes);
+                log.debug("Re-encoded {} as PNG - {} bytes instead of {}", mediaFile.getCompleteFilename(), keptBytes, size);
+                return pngFile;
+            }
+            return null;
+        } catch (IOException | RuntimeException e) {
+            log.debug("Uploading {} as is - unable to re-encode it: {}", mediaFile.getCompleteFilename(), e.getMessage());
+            return null;
+        } finally {
+            if (keptBytes == 0) {
+                FileUtils.deleteQuietly(pngFile);
+            }
+            unreserve(size - keptBytes);
+        }
+    }
+
+    /**
+     * Delete a transcoded file once its upload has finished or failed, freeing its space
+     */
+    void release(File pngFile) {
+        long length = pngFile.length();
+        FileUtils.deleteQuietly(pngFile);
+        unreserve(length);
+    }
+
+    long getTranscodedCount() {
+        return transcodedCount.get();
+    }
+
+    long getBytesSaved() {
+        return bytesSaved.get();
+    }
+
+    @Override
+    public void close() {
+        log.info("Re-encoded {} images as PNG, saving {} MB", transcodedCount.get(), bytesSaved.get() / FileUtils.ONE_MB);
+        FileUtils.deleteQuietly(directory);
+    }
+
+    private synchronized void reserve(long bytes) throws InterruptedException {
+        while (reservedBytes > 0 && reservedBytes + bytes > capBytes) {
+            wait();
+        }
+        reservedBytes += bytes;
+    }
+
+    private synchronized void unreserve(long bytes) {
+        reservedBytes -= bytes;
+        notifyAll();
+    }
+
+    /**
+     * Decode a single image whose samples PNG can hold exactly - 8 bit RGB, gray or palette, or 16 bit gray
+     *
+     * @return The image, or null if re-encoding it could lose anything
+     */
+    private static BufferedImage readLosslessCandidate(File file) throws IOException {
+        try (ImageInputStream input = ImageIO.createImageInputStream(file)) {
+            Iterator<ImageReader> readers = input != null ? ImageIO.getImageReaders(input) : null;
+            if (readers == null || !readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, false, false);
+                if (reader.getNumImages(true) != 1 || hasPreservedTiffTags(reader.getImageMetadata(0))) {
+                    return null;
+                }
+                BufferedImage image = reader.read(0);
+                Raster raster = image.getRaster();
+                ColorSpace colorSpace = image.getColorModel().getColorSpace();
+                int colorSpaceType = colorSpace.getType();
+                int[] sampleSizes = raster.getSampleModel().getSampleSize();
+                boolean bytes = raster.getDataBuffer().getDataType() == DataBuffer.TYPE_BYTE
+                        && Arrays.stream(sampleSizes).allMatch(bits -> bits <= 8);
+                boolean gray16 = raster.getDataBuffer().getDataType() == DataBuffer.TYPE_USHORT
+                        && colorSpaceType == ColorSpace.TYPE_GRAY && sampleSizes.length == 1;
+                // An embedded profile gives a colour space of its own, which PNG would not carry
+                boolean supportedColorSpace = colorSpace.isCS_sRGB() || colorSpace == ColorSpace.getInstance(ColorSpace.CS_GRAY);
+                return supportedColorSpace && (bytes || gray16) ? image : null;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static boolean hasPreservedTiffTags(IIOMetadata metadata) {
+        if (metadata == null || !Arrays.asList(metadata.getMetadataFormatNames()).contains(TIFF_METADATA_FORMAT)) {
+            return false;
+        }
+        return hasPreservedTiffTags(metadata.getAsTree(TIFF_METADATA_FORMAT));
+    }
+
+    private static boolean hasPreservedTiffTags(org.w3c.dom.Node node) {
+        if ("TIFFField".equals(node.getNodeName()) && node.getAttributes() != null) {
+            org.w3c.dom.Node number = node.getAttributes().getNamedItem("number");
+            if (number != null && PRESERVED_TIFF_TAGS.contains(number.getNodeValue())) {
+                return true;
+            }
+        }
+        for (org.w3c.dom.Node child = node.getFirstChild(); child != null; child = child.getNextSibling()) {
+            if (hasPreservedTiffTags(child)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Compare two images sample by sample, row by row to keep the copies small
+     */
+    private static boolean samplesEqual(BufferedImage original, BufferedImage decoded) {
+        if (decoded == null || decoded.getWidth() != original.getWidth() || decoded.getHeight() != original.getHeight()) {
+            return false;
+        }
+        Raster originalRaster = original.getRaster();
+        Raster decodedRaster = decoded.getRaster();
+        if (originalRaster.getNumBands() != decodedRaster.getNumBands()) {
+            // i.e. palette indices expanded to RGB - compare colours instead
+            return rgbEqual(original, decoded);
+        }
+        int width = original.getWidth();
+        int[] originalRow = null;
+        int[] decodedRow = null;
+        for (int y = 0; y < original.getHeight(); y++) {
+            originalRow = originalRaster.getPixels(0, y, width, 1, originalRow);
+            decodedRow = decodedRaster.getPixels(0, y, width, 1, decodedRow);
+            if (!Arrays.equals(originalRow, decodedRow)) {
+                return rgbEqual(original, decoded);
+            }
+        }
+        return true;
+    }
+
+    private static boolean rgbEqual(BufferedImage original, BufferedImage decoded) {
+        if (original.getRaster().getDataBuffer().getDataType() != DataBuffer.TYPE_BYTE) {
+            // Colours are only 8 bits a channel, so they cannot show 16 bit samples are equal
+            return false;
+        }
+        int width = original.getWidth();
+        int[] originalRow = new int[width];
+        int[] decodedRow = new int[width];
+        for (int y = 0; y < original.getHeight(); y++) {
+            original.getRGB(0, y, width, 1, originalRow, 0, width);
+            decoded.getRGB(0, y, width, 1, decodedRow, 0, width);
+            if (!Arrays.equals(originalRow, decodedRow)) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,306 @@
+package us.abaz.googlephotos.process;
+
+import com.google.photos.library.v1.proto.BatchCreateMediaItemsRequest;
+import com.google.photos.library.v1.proto.BatchCreateMediaItemsResponse;
+import com.google.photos.library.v1.proto.NewMediaItem;
+import com.google.photos.library.v1.proto.NewMediaItemResult;
+import com.google.photos.library.v1.proto.SimpleMediaItem;
+import com.google.photos.types.proto.Album;
+import com.google.rpc.Code;
+import lombok.extern.slf4j.Slf4j;
+import us.abaz.googlephotos.api.PhotosApi;
+import us.abaz.googlephotos.mediafinder.MediaFile;
+import us.abaz.googlephotos.metrics.Latency;
+import us.abaz.googlephotos.metrics.UploadMetrics;
+import us.abaz.googlephotos.ratelimit.ApiEndpoint;
+import us.abaz.googlephotos.ratelimit.ApiRateLimiters;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+
+/**
+ * Collects upload tokens per album and commits them with a single batchCreateMediaItems call once a batch fills,
+ * once the oldest entry in a batch has waited longer than the configured delay, or on close.  Existing media
+ * items added to an album are batched the same way through batchAddMediaItemsToAlbum.  Commits run on their own
+ * pipeline stage so a slow create call never holds up the byte transfers feeding it.
+ */
+@Slf4j
+class MediaItemBatcher implements AutoCloseable {
+    // Maximum number of new media items the Google Photos API accepts in one batchCreateMediaItems call
+    static final int MAX_BATCH_SIZE = 50;
+
+    private final PhotosApi photosApi;
+    private final ApiRateLimiters rateLimiters;
+    private final UploadMetrics metrics;
+    private final BiConsumer<MediaFile, String> committedHandler;
+    private final BiConsumer<MediaFile, Throwable> failedHandler;
+    private final BiConsumer<MediaFile, String> existingRejectedHandler;
+    private final int batchSize;
+    private final long maxBatchDelayNanos;
+    private final Map<String, PendingBatch> pendingBatches = new HashMap<>();
+    private final PipelineStage commitStage;
+    private final AtomicInteger inFlightCommits = new AtomicInteger(0);
+    private final ScheduledExecutorService flushExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "media-item-batcher");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    /**
+     * @param photosApi               The API used to create the media items
+     * @param rateLimiters            The rate limiters for API calls
+     * @param metrics                 The metrics create calls are timed in
+     * @param batchSize               Maximum items per batch, capped at {@link #MAX_BATCH_SIZE}
+     * @param maxBatchDelay           Maximum time an upload token may wait for its batch to fill
+     * @param commitParallelism       Number of batches committed concurrently
+     * @param committedHandler        Called with the media item id for every file whose media item was created or added
+     * @param failedHandler           Called for every file whose media item could not be created
+     * @param existingRejectedHandler Called with the media item id for every file whose existing media item was refused
+     */
+    MediaItemBatcher(PhotosApi photosApi,
+                     ApiRateLimiters rateLimiters,
+                     UploadMetrics metrics,
+                     int batchSize,
+                     Duration maxBatchDelay,
+                     int commitParallelism,
+                     BiConsumer<MediaFile, String> committedHandler,
+                     BiConsumer<MediaFile, Throwable> failedHandler,
+                     BiConsumer<MediaFile, String> existingRejectedHandler) {
+        this.photosApi = photosApi;
+        this.rateLimiters = rateLimiters;
+        this.metrics = metrics;
+        this.batchSize = Math.max(1, Math.min(batchSize, MAX_BATCH_SIZE));
+        this.maxBatchDelayNanos = maxBatchDelay.toNanos();
+        this.committedHandler = committedHandler;
+        this.failedHandler = failedHandler;
+        this.existingRejectedHandler = existingRejectedHandler;
+        this.commitStage = new PipelineStage("media-item-create", commitParallelism, commitParallelism);
+        long checkIntervalMillis = Math.max(100, maxBatchDelay.toMillis() / 4);
+        flushExecutor.scheduleWithFixedDelay(this::flushExpired, checkIntervalMillis, checkIntervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Queue an uploaded file for media item creation.  If this addition fills the batch it is handed to the commit
+     * stage, blocking while that stage is full.
+     *
+     * @param album       The album the media item is created in
+     * @param mediaFile   The uploaded file
+     * @param uploadToken The upload token returned for the file bytes
+     */
+    void add(Album album, MediaFile mediaFile, String uploadToken) {
+        add(BatchType.CREATE, album, mediaFile, uploadToken);
+    }
+
+    /**
+     * Queue an already created media item to be added to an album
+     *
+     * @param album       The album the media item is added to
+     * @param mediaFile   The file the media item was created from
+     * @param mediaItemId The existing media item id
+     */
+    void addExisting(Album album, MediaFile mediaFile, String mediaItemId) {
+        add(BatchType.ALBUM_ADD, album, mediaFile, mediaItemId);
+    }
+
+    private void add(BatchType batchType, Album album, MediaFile mediaFile, String id) {
+        String batchKey = batchType + ":" + album.getId();
+        PendingBatch fullBatch = null;
+        synchronized (pendingBatches) {
+            PendingBatch batch = pendingBatches.computeIfAbsent(batchKey, key -> new PendingBatch(batchType, album.getId()));
+            batch.add(mediaFile, id);
+            if (batch.size() >= batchSize) {
+                pendingBatches.remove(batchKey);
+                fullBatch = batch;
+            }
+        }
+        if (fullBatch != null) {
+            submitCommit(fullBatch);
+        }
+    }
+
+    /**
+     * @return Total upload tokens waiting for their batch to be committed
+     */
+    int getPendingCount() {
+        synchronized (pendingBatches) {
+            return pendingBatches.values().stream().mapToInt(PendingBatch::size).sum();
+        }
+    }
+
+    /**
+     * Commit every pending batch regardless of size or age and wait for all commits to finish
+     */
+    void flushAll() throws InterruptedException {
+        List<PendingBatch> batches;
+        synchronized (pendingBatches) {
+            batches = new ArrayList<>(pendingBatches.values());
+            pendingBatches.clear();
+        }
+        batches.forEach(this::submitCommit);
+        synchronized (inFlightCommits) {
+            while (inFlightCommits.get() > 0) {
+                inFlightCommits.wait();
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        flushExecutor.shutdownNow();
+        try {
+            flushAll();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted committing the remaining media item batches");
+        }
+        commitStage.close();
+    }
+
+    private void flushExpired() {
+        long now = System.nanoTime();
+        List<PendingBatch> expired = new ArrayList<>();
+        synchronized (pendingBatches) {
+            Iterator<PendingBatch> iterator = pendingBatches.values().iterator();
+            while (iterator.hasNext()) {
+                PendingBatch batch = iterator.next();
+                if (now - batch.createdNanos >= maxBatchDelayNanos) {
+                    iterator.remove();
+                    expired.add(batch);
+                }
+            }
+        }
+        expired.forEach(this::submitCommit);
+    }
+
+    private void submitCommit(PendingBatch batch) {
+        inFlightCommits.incrementAndGet();
+        try {
+            commitStage.submit(() -> {
+                try {
+                    commit(batch);
+                } finally {
+                    commitFinished();
+                }
+            });
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            commitFinished();
+            batch.entries.forEach(entry -> failedHandler.accept(entry.mediaFile, e));
+        }
+    }
+
+    private void commitFinished() {
+        synchronized (inFlightCommits) {
+            inFlightCommits.decrementAndGet();
+            inFlightCommits.notifyAll();
+        }
+    }
+
+    private void commit(PendingBatch batch) {
+        if (batch.batchType == BatchType.ALBUM_ADD) {
+            commitAlbumAdd(batch);
+        } else {
+            commitCreate(batch);
+        }
+    }
+
+    private void commitAlbumAdd(PendingBatch batch) {
+        try {
+            List<String> mediaItemIds = new ArrayList<>();
+            batch.entries.forEach(entry -> mediaItemIds.add(entry.id));
+            rateLimiters.call(ApiEndpoint.ALBUM_ADD,
+                    () -> photosApi.batchAddMediaItemsToAlbum(batch.albumId, mediaItemIds));
+            log.debug("Added {} existing media items to album {}", batch.size(), batch.albumId);
+            batch.entries.forEach(entry -> committedHandler.accept(entry.mediaFile, entry.id));
+        } catch (Exception e) {
+            // The call fails as a whole, so any one media item that was deleted, or that the app may no longer add,
+            // fails the rest of the batch with it - none of them can be trusted
+            log.warn("Error adding batch of {} existing media items to album {} - uploading their bytes instead", batch.size(), batch.albumId, e);
+            batch.entries.forEach(entry -> existingRejectedHandler.accept(entry.mediaFile, entry.id));
+        }
+    }
+
+    private void commitCreate(PendingBatch batch) {
+        try {
+            BatchCreateMediaItemsRequest.Builder createRequestBuilder =
+                    BatchCreateMediaItemsRequest.newBuilder().setAlbumId(batch.albumId);
+            batch.entries.forEach(entry -> createRequestBuilder.addNewMediaItems(
+                    NewMediaItem.newBuilder()
+                            .setSimpleMediaItem(SimpleMediaItem.newBuilder()
+                                    .setFileName(entry.mediaFile.getCompleteFilename())
+                                    .setUploadToken(entry.id))));
+            BatchCreateMediaItemsRequest createRequest = createRequestBuilder.build();
+            long start = System.nanoTime();
+            BatchCreateMediaItemsResponse response = rateLimiters.call(ApiEndpoint.BATCH_CREATE,
+                    () -> photosApi.batchCreateMediaItems(createRequest));
+            metrics.recordLatency(Latency.MEDIA_ITEM_CREATE, System.nanoTime() - start);
+            log.debug("Created {} media items in album {}", batch.size(), batch.albumId);
+
+            // Results are not guaranteed to be in request order so match them back up by upload token
+            Map<String, NewMediaItemResult> resultsByToken = new HashMap<>();
+            response.getNewMediaItemResultsList().forEach(result -> resultsByToken.put(result.getUploadToken(), result));
+            for (BatchEntry entry : batch.entries) {
+                NewMediaItemResult result = resultsByToken.get(entry.id);
+                if (result == null) {
+                    failedHandler.accept(entry.mediaFile, new RuntimeException("No result returned for " + entry.mediaFile));
+                } else if (result.getStatus().getCode() != Code.OK_VALUE) {
+                    failedHandler.accept(entry.mediaFile, new MediaItemCreationException(
+                            "Error creating media item for " + entry.mediaFile + ": " + result.getStatus().getMessage(),
+                            Code.forNumber(result.getStatus().getCode())));
+                } else {
+                    committedHandler.accept(entry.mediaFile, result.getMediaItem().getId());
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error creating batch of {} media items in album {}", batch.size(), batch.albumId, e);
+            // A deleted album fails every batch created in it until its title is resolved again
+            Exception failure = FailureClassifier.isAlbumRejected(e) ? new AlbumUnavailableException(batch.albumId, e) : e;
+            batch.entries.forEach(entry -> failedHandler.accept(entry.mediaFile, failure));
+        }
+    }
+
+    private enum BatchType {
+        CREATE,
+        ALBUM_ADD
+    }
+
+    private static class PendingBatch {
+        private final BatchType batchType;
+        private final String albumId;
+        private final long createdNanos = System.nanoTime();
+        private final List<BatchEntry> entries = new ArrayList<>();
+
+        PendingBatch(BatchType batchType, String albumId) {
+            this.batchType = batchType;
+            this.albumId = albumId;
+        }
+
+        void add(MediaFile mediaFile, String id) {
+            entries.add(new BatchEntry(mediaFile, id));
+        }
+
+        int size() {
+            return entries.size();
+        }
+    }
+
+    private static class BatchEntry {
+        private final MediaFile mediaFile;
+        // The upload token for a create, the existing media item id for an album add
+        private final String id;
+
+        BatchEntry(MediaFile mediaFile, String id) {
+            this.mediaFile = mediaFile;
+            this.id = id;
+        }
+    }
+}
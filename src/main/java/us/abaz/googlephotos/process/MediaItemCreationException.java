@@ -0,0 +1,19 @@
+package us.abaz.googlephotos.process;
+
+import com.google.rpc.Code;
+import lombok.Getter;
+
+/**
+ * A media item that the API refused to create, with the status code from its batchCreateMediaItems result
+ */
+@Getter
+class MediaItemCreationException extends RuntimeException {
+    private static final long serialVersionUID = 1L;
+
+    private final Code statusCode;
+
+    MediaItemCreationException(String message, Code statusCode) {
+        super(message);
+        this.statusCode = statusCode;
+    }
+}
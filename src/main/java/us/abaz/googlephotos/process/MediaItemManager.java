@@ -4,111 +4,369 @@ import com.google.errorprone.annotations.concurrent.LazyInit;
 import lombok.Getter;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.io.IOUtils;
-import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.io.FileUtils;
+import us.abaz.googlephotos.mediafinder.DirectoryWatcher;
 import us.abaz.googlephotos.mediafinder.GoogleSupportedMediaFinder;
 import us.abaz.googlephotos.mediafinder.MediaFile;
+import us.abaz.googlephotos.metrics.UploadMetrics;
+import us.abaz.googlephotos.util.LongHashSet;
 import us.abaz.googlephotos.util.PhotoUploadConfig;
 
 import java.io.*;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Collection;
 import java.util.Collections;
-import java.util.List;
-import java.util.Queue;
+import java.util.LinkedHashSet;
 import java.util.Set;
-import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.stream.Collectors;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
 
 @Slf4j
 public class MediaItemManager implements AutoCloseable {
     private static final String PROCESSED_LOG = "GooglePhotoAlbumUploader_processed.txt";
+    private static final String COMPLETION_JOURNAL = "GooglePhotoAlbumUploader_journal.bin";
+    private static final String DIRECTORY_MANIFEST = "GooglePhotoAlbumUploader_manifest.txt";
+    private static final long DISCOVERY_POLL_MILLIS = 250;
     private final Object monitor = new Object();
     private final PhotoUploadConfig config;
     private final File processedLog;
+    private final File journalFile;
+    private final AtomicInteger totalFiles = new AtomicInteger(0);
+    private final UploadMetrics metrics;
+    private final ShardAssignment shardAssignment;
+    private final Consumer<Collection<String>> albumsDiscoveredListener;
+    private final Set<String> discoveredAlbumNames = ConcurrentHashMap.newKeySet();
     private volatile boolean initialized = false;
-    private int totalFiles;
-    private PrintWriter writer = null;
-    private Queue<MediaFile> filesToProcessQueue;
+    private volatile boolean discoveryComplete = false;
+    private volatile boolean closed = false;
+    private ProcessedFileIndex processedFiles;
+    private CompletionJournal journal;
+    private ScheduledFileQueue filesToProcessQueue;
+    private Thread discoveryThread;
+    private DirectoryWatcher watcher;
+    // In watch mode, the files queued this run and not completed yet - rescans find them again meanwhile
+    private LongHashSet queuedFingerprints;
 
-    MediaItemManager(PhotoUploadConfig photoUploadConfig) {
+    /**
+     * @param photoUploadConfig        The upload configuration
+     * @param metrics                  The metrics the completion journal records its writes in
+     * @param shardAssignment          Which of the discovered files this process uploads
+     * @param albumsDiscoveredListener Called with the album names of files to process as soon as they are known -
+     *                                 all at once after a full scan, or as the walk reaches them when streaming
+     */
+    MediaItemManager(PhotoUploadConfig photoUploadConfig,
+                     UploadMetrics metrics,
+                     ShardAssignment shardAssignment,
+                     Consumer<Collection<String>> albumsDiscoveredListener) {
         this.config = photoUploadConfig;
-        this.processedLog = new File(photoUploadConfig.getTempStoragePath(), PROCESSED_LOG);
+        this.metrics = metrics;
+        this.shardAssignment = shardAssignment;
+        this.albumsDiscoveredListener = albumsDiscoveredListener;
+        this.processedLog = new File(photoUploadConfig.getStatePath(), PROCESSED_LOG);
+        this.journalFile = new File(photoUploadConfig.getStatePath(), COMPLETION_JOURNAL);
     }
 
     @Override
     public void close() {
+        closed = true;
         synchronized (monitor) {
-            if (writer != null) {
-                writer.close();
+            if (discoveryThread != null) {
+                discoveryThread.interrupt();
+            }
+            if (watcher != null) {
+                watcher.close();
+            }
+            // Dead letters being retried are only dropped once every one of them has been handed out
+            File retryingFile = getRetryingDeadLetterFile();
+            if (config.isRetryDeadLetters() && filesToProcessQueue != null && filesToProcessQueue.isEmpty() && !retryingFile.delete()) {
+                log.warn("Unable to remove retried dead letter file {}", retryingFile);
+            }
+            if (journal != null) {
+                journal.close();
+                try {
+                    processedFiles.compactJournal();
+                } catch (IOException e) {
+                    log.warn("Unable to compact completion journal - it will be compacted on the next run", e);
+                }
             }
         }
     }
 
+    /**
+     * Get the next file to upload.  With streaming discovery this blocks until the walk finds another eligible
+     * file or completes.  In watch mode discovery never completes, so this only waits briefly and returns null
+     * while there are no new files.
+     *
+     * @return The next file or null once there are no more files, or none for now in watch mode
+     */
+    @SneakyThrows
     MediaFile getNextFile() {
         if (!initialized) {
             initialize();
         }
-        return filesToProcessQueue.poll();
+        MediaFile mediaFile = filesToProcessQueue.poll();
+        while (mediaFile == null && !discoveryComplete) {
+            mediaFile = filesToProcessQueue.poll(DISCOVERY_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (config.isWatch()) {
+                break;
+            }
+        }
+        // The walk may have finished between the last poll and the completion check
+        return mediaFile != null ? mediaFile : filesToProcessQueue.poll();
+    }
+
+    /**
+     * Release the upload slot a file held in the scheduling policy once its transfer has finished or failed
+     */
+    void releaseUploadSlot(MediaFile mediaFile) {
+        if (filesToProcessQueue != null) {
+            filesToProcessQueue.release(mediaFile);
+        }
     }
 
-    @SuppressWarnings("ResultOfMethodCallIgnored")
+    /**
+     * Record a file as uploaded.  Safe to call from any thread without blocking on disk - the completion is made
+     * durable by the journal's next group commit.  In watch mode the file moves from the queued files to the
+     * processed index, which the journal is compacted into on each rescan.
+     */
     void markMediaFileUploaded(MediaFile mediaFile) {
-        // Make this thread safe for multiple consumers
-        synchronized (monitor) {
-            try {
-                if (writer == null) {
-                    if (!processedLog.exists()){
-                        processedLog.createNewFile();
-                    }
-                    // No buffering since we will flush on every write anyway
-                    writer = new PrintWriter(new FileWriter(processedLog, true));
-                }
-                writer.println(mediaFile.getCompleteFilename());
-                writer.flush();
-            } catch (Exception e) {
-                log.error("Error marking file as uploaded " + mediaFile.getCompleteFilename(), e);
+        journal.append(mediaFile.getCompleteFilename());
+        if (queuedFingerprints != null) {
+            long fingerprint = ProcessedFileIndex.fingerprint(mediaFile);
+            synchronized (queuedFingerprints) {
+                processedFiles.add(fingerprint);
+                queuedFingerprints.remove(fingerprint);
             }
         }
     }
 
-    @SneakyThrows
-    private List<MediaFile> getProcessedMediaFiles() {
-        log.info("Processed file log path: {}", processedLog.getAbsolutePath());
-        if (!processedLog.exists()) {
-            return Collections.emptyList();
+    /**
+     * Fold the completions journaled so far into the processed index, so neither grows for as long as a watch
+     * runs.  The journal is rotated without holding up appends and its sealed segment compacted while they go on.
+     */
+    private void compactWatchedCompletions() {
+        if (closed) {
+            return;
         }
-
-        try (InputStream is = new BufferedInputStream(new FileInputStream(processedLog))) {
-            List<String> files = IOUtils.readLines(is, StandardCharsets.UTF_8.name());
-            return files.stream()
-                    .filter(StringUtils::isNotBlank)
-                    .map(fileName -> MediaFile.fromPathString(config.getSearchRootDir(), fileName))
-                    .collect(Collectors.toList());
+        try {
+            // A segment left by a failed compaction goes first, as the rotation would need its place
+            processedFiles.compactSealedJournal();
+            journal.rotate();
+            processedFiles.compactSealedJournal();
+        } catch (IOException e) {
+            log.warn("Unable to compact completion journal - it will be compacted on the next rescan or run", e);
         }
     }
 
+    @SneakyThrows
+    private CompletionJournal openJournal() {
+        return new CompletionJournal(journalFile, metrics);
+    }
+
+    @SneakyThrows
+    private ProcessedFileIndex loadProcessedFileIndex() {
+        log.info("Processed file log path: {}", processedLog.getAbsolutePath());
+        return ProcessedFileIndex.load(processedLog, journalFile, ShardAssignment.getOtherStateDirectories(config));
+    }
+
+    /**
+     * @return The total files to process - with streaming discovery this is the number discovered so far until
+     * {@link #isDiscoveryComplete()}
+     */
     public int getTotalFiles() {
         if (!initialized) {
             initialize();
         }
-        return totalFiles;
+        return totalFiles.get();
+    }
+
+    public boolean isDiscoveryComplete() {
+        return discoveryComplete;
     }
 
     private void initialize() {
         synchronized (monitor) {
             if (!initialized) {
-                // Read the already processed files
-                List<MediaFile> processedFiles = getProcessedMediaFiles();
-                // Find the target files
-                GoogleSupportedMediaFinder mediaFinder = new GoogleSupportedMediaFinder(config.isIncludePhotos(), config.isIncludeVideos());
-                Set<MediaFile> foundFiles = mediaFinder.findMediaFiles(config.getSearchRootDir());
-                // Remove the already processed files
-                foundFiles.removeAll(processedFiles);
-                log.info("Total files to process {} after removing {} already processed files", foundFiles.size(), processedFiles.size());
-                filesToProcessQueue = new ConcurrentLinkedQueue<>(foundFiles);
-                totalFiles = filesToProcessQueue.size();
+                // Load the index of already processed files, then start journaling new completions
+                processedFiles = loadProcessedFileIndex();
+                journal = openJournal();
+                GoogleSupportedMediaFinder mediaFinder = new GoogleSupportedMediaFinder(
+                        config.isIncludePhotos(), config.isIncludeVideos(), config.getDiscoveryParallelism(), getManifestFile());
+                if (config.isRetryDeadLetters()) {
+                    Set<MediaFile> deadLetters = readDeadLetters();
+                    filesToProcessQueue = createQueue(Integer.MAX_VALUE);
+                    filesToProcessQueue.addAll(deadLetters);
+                    totalFiles.set(filesToProcessQueue.size());
+                    discoveryComplete = true;
+                    notifyAlbumsDiscovered(deadLetters);
+                } else if (config.isWatch()) {
+                    // Directories are registered before the initial walk so nothing created during it is missed
+                    filesToProcessQueue = createQueue(config.getDiscoveryQueueSize());
+                    queuedFingerprints = new LongHashSet();
+                    watcher = createWatcher(mediaFinder);
+                    discoveryThread = new Thread(() -> discoverFiles(mediaFinder), "media-discovery");
+                    discoveryThread.setDaemon(true);
+                    discoveryThread.start();
+                } else if (config.isStreamingDiscovery()) {
+                    filesToProcessQueue = createQueue(config.getDiscoveryQueueSize());
+                    discoveryThread = new Thread(() -> discoverFiles(mediaFinder), "media-discovery");
+                    discoveryThread.setDaemon(true);
+                    discoveryThread.start();
+                } else {
+                    // Find the target files of this shard that are not already processed
+                    Set<MediaFile> foundFiles = mediaFinder.findMediaFiles(config.getSearchRootDir(),
+                            mediaFile -> shardAssignment.isAssigned(mediaFile) && !processedFiles.contains(mediaFile));
+                    log.info("Total files to process {} after removing {} already processed files", foundFiles.size(), processedFiles.size());
+                    filesToProcessQueue = createQueue(Integer.MAX_VALUE);
+                    filesToProcessQueue.addAll(foundFiles);
+                    totalFiles.set(filesToProcessQueue.size());
+                    discoveryComplete = true;
+                    notifyAlbumsDiscovered(foundFiles);
+                }
                 initialized = true;
             }
         }
     }
+
+    /**
+     * The manifest only skips directories whose files were all processed, so it is dropped along with the
+     * processed log - i.e. when the processed log is deleted to upload everything again
+     */
+    private File getManifestFile() {
+        File manifestFile = new File(config.getStatePath(), DIRECTORY_MANIFEST);
+        if (processedFiles.size() == 0 && manifestFile.delete()) {
+            log.info("Removed directory manifest {} as no files are processed yet", manifestFile);
+        }
+        return config.isIncrementalScan() ? manifestFile : null;
+    }
+
+    /**
+     * Files that need more than one upload chunk count as large for the size balanced policy
+     */
+    private ScheduledFileQueue createQueue(int capacity) {
+        log.info("Scheduling uploads {}", config.getSchedulingPolicy());
+        return new ScheduledFileQueue(config.getSchedulingPolicy(), capacity,
+                config.getUploadChunkSizeMb() * FileUtils.ONE_MB, config.getMaxParallelUploads());
+    }
+
+    private void notifyAlbumsDiscovered(Collection<MediaFile> mediaFiles) {
+        Set<String> newAlbumNames = new LinkedHashSet<>();
+        for (MediaFile mediaFile : mediaFiles) {
+            if (discoveredAlbumNames.add(mediaFile.getAlbumName())) {
+                newAlbumNames.add(mediaFile.getAlbumName());
+            }
+        }
+        if (!newAlbumNames.isEmpty()) {
+            albumsDiscoveredListener.accept(newAlbumNames);
+        }
+    }
+
+    /**
+     * Take over the dead letter file and read the files in it that are still not processed - failures of this
+     * run are written to a fresh dead letter file
+     */
+    @SneakyThrows
+    private Set<MediaFile> readDeadLetters() {
+        File deadLetterFile = RetryQueue.getDeadLetterFile(config.getStatePath());
+        File retryingFile = getRetryingDeadLetterFile();
+        Set<String> paths = new LinkedHashSet<>(RetryQueue.readDeadLetters(retryingFile));
+        paths.addAll(RetryQueue.readDeadLetters(deadLetterFile));
+        Set<MediaFile> mediaFiles = new LinkedHashSet<>();
+        for (String path : paths) {
+            if (!processedFiles.contains(path)) {
+                mediaFiles.add(MediaFile.fromPathString(config.getSearchRootDir(), path));
+            }
+        }
+        // Keep everything being retried in one file until this run has handed it all out
+        try (PrintWriter writer = new PrintWriter(new FileWriter(retryingFile, StandardCharsets.UTF_8))) {
+            mediaFiles.forEach(mediaFile -> writer.println(mediaFile.getCompleteFilename()));
+        }
+        Files.deleteIfExists(deadLetterFile.toPath());
+        log.info("Retrying {} dead lettered files without rescanning", mediaFiles.size());
+        return mediaFiles;
+    }
+
+    private File getRetryingDeadLetterFile() {
+        return new File(RetryQueue.getDeadLetterFile(config.getStatePath()).getPath() + ".retrying");
+    }
+
+    @SneakyThrows
+    private DirectoryWatcher createWatcher(GoogleSupportedMediaFinder mediaFinder) {
+        return new DirectoryWatcher(config.getSearchRootDir(), mediaFinder, this::queueIfNew,
+                this::compactWatchedCompletions, config.getWatchSettleSeconds(), config.getWatchRescanMinutes());
+    }
+
+    /**
+     * Walk the search root feeding eligible files into the bounded work queue - blocks whenever the queue is full.
+     * In watch mode the watcher takes over once the walk is done and discovery never completes.
+     */
+    private void discoverFiles(GoogleSupportedMediaFinder mediaFinder) {
+        AtomicInteger skipped = new AtomicInteger(0);
+        boolean watching = false;
+        try {
+            mediaFinder.walkPendingMediaFiles(config.getSearchRootDir(), mediaFile -> {
+                if (queueIfNew(mediaFile)) {
+                    return true;
+                }
+                skipped.incrementAndGet();
+                return false;
+            });
+            log.info("Discovery complete - {} files to process after skipping {} already processed files or files of other shards", totalFiles.get(), skipped.get());
+            if (watcher != null) {
+                watcher.start();
+                watching = true;
+            }
+        } catch (CancellationException e) {
+            log.info("Discovery stopped after {} files", totalFiles.get());
+        } catch (Exception e) {
+            log.error("Error discovering media files", e);
+        } finally {
+            discoveryComplete = !watching;
+        }
+    }
+
+    /**
+     * Queue a discovered file of this shard unless it was already processed, or in watch mode already queued
+     * this run
+     *
+     * @return Whether the file is still to be processed by this shard
+     */
+    private boolean queueIfNew(MediaFile mediaFile) {
+        if (!shardAssignment.isAssigned(mediaFile) || processedFiles.contains(mediaFile)) {
+            return false;
+        }
+        if (queuedFingerprints != null) {
+            long fingerprint = ProcessedFileIndex.fingerprint(mediaFile);
+            synchronized (queuedFingerprints) {
+                // Checked again as a file completing meanwhile moves from the queued files to the index
+                if (processedFiles.contains(fingerprint)) {
+                    return false;
+                }
+                if (!queuedFingerprints.add(fingerprint)) {
+                    return true;
+                }
+            }
+        }
+        enqueueDiscoveredFile(mediaFile);
+        return true;
+    }
+
+    /**
+     * Add a discovered file to the work queue, waiting for space.  The walk may call this from several threads so
+     * rather than relying on interrupting the caller, the wait gives up once this manager is closed.
+     */
+    @SneakyThrows
+    private void enqueueDiscoveredFile(MediaFile mediaFile) {
+        while (!filesToProcessQueue.offer(mediaFile, DISCOVERY_POLL_MILLIS, TimeUnit.MILLISECONDS)) {
+            if (closed) {
+                throw new CancellationException("Media item manager closed");
+            }
+        }
+        totalFiles.incrementAndGet();
+        notifyAlbumsDiscovered(Collections.singleton(mediaFile));
+    }
 }
@@ -0,0 +1,89 @@
+package us.abaz.googlephotos.process;
+
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * One stage of the upload pipeline - a fixed set of worker threads fed by a bounded queue.  Submitting to a full
+ * stage blocks the caller, so a slow stage pushes back on the stage in front of it rather than letting work pile up.
+ */
+@Slf4j
+class PipelineStage implements AutoCloseable {
+    private static final long POLL_MILLIS = 100;
+
+    private final String name;
+    private final BlockingQueue<Runnable> queue;
+    private final List<Thread> workers = new ArrayList<>();
+    private volatile boolean closed = false;
+
+    /**
+     * @param name          The stage name, used for the worker thread names
+     * @param workerCount   Number of tasks the stage runs concurrently
+     * @param queueCapacity Number of tasks that may wait for a worker before submitters block
+     */
+    PipelineStage(String name, int workerCount, int queueCapacity) {
+        this.name = name;
+        this.queue = new ArrayBlockingQueue<>(Math.max(1, queueCapacity));
+        for (int i = 0; i < Math.max(1, workerCount); i++) {
+            Thread worker = new Thread(this::runWorker, name + "-" + i);
+            worker.setDaemon(true);
+            worker.start();
+            workers.add(worker);
+        }
+    }
+
+    /**
+     * Queue a task, blocking while the stage is full
+     */
+    void submit(Runnable task) throws InterruptedException {
+        if (closed) {
+            throw new IllegalStateException("Pipeline stage " + name + " is closed");
+        }
+        queue.put(task);
+    }
+
+    /**
+     * @return Tasks waiting for a worker
+     */
+    int getQueuedCount() {
+        return queue.size();
+    }
+
+    /**
+     * Stop accepting tasks and wait for the queued ones to finish, unless interrupted
+     */
+    @Override
+    public void close() {
+        closed = true;
+        try {
+            for (Thread worker : workers) {
+                worker.join();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.warn("Interrupted waiting for pipeline stage {} to finish its queued tasks", name);
+        }
+    }
+
+    private void runWorker() {
+        try {
+            while (!closed || !queue.isEmpty()) {
+                Runnable task = queue.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+                if (task != null) {
+                    try {
+                        task.run();
+                    } catch (RuntimeException e) {
+                        log.error("Unhandled error in pipeline stage {}", name, e);
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
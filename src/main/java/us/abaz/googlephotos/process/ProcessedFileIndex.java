@@ -0,0 +1,393 @@
+package us.abaz.googlephotos.process;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.lang3.StringUtils;
+import us.abaz.googlephotos.mediafinder.MediaFile;
+import us.abaz.googlephotos.util.LongHashSet;
+
+import java.io.*;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * Membership index of already processed files keyed on a 64 bit fingerprint of the complete file name.
+ * <p>
+ * The fingerprints are kept sorted in a side file next to the processed log and memory mapped at startup, so
+ * answering a lookup is a binary search with no per entry objects on the heap.  The side file records how many
+ * bytes of the legacy text processed log it covers - any lines appended to the log since are folded in on the
+ * next load, which also migrates an existing log on first use.  Records in the {@link CompletionJournal} are
+ * compacted into the side file on load and on {@link #compactJournal()}, after which the journal is emptied.  A
+ * running watch compacts the sealed segment of a rotated journal with {@link #compactSealedJournal()} instead.
+ * The side file is rewritten without holding up lookups, which check the fingerprints being written meanwhile.
+ * <p>
+ * When the files are split across shards, each shard keeps its own processed log, journal and side file.  On load
+ * the files processed by the other shards, and by unsharded runs, are merged in read only, so a resume with a
+ * different number of shards does not upload anything again.
+ */
+@Slf4j
+class ProcessedFileIndex {
+    private static final String INDEX_FILE = "GooglePhotoAlbumUploader_processed.idx";
+    // "GPAUIDX1"
+    private static final long MAGIC = 0x4750415549445831L;
+    // Magic, covered processed log bytes, fingerprint count
+    private static final int HEADER_BYTES = 3 * Long.BYTES;
+    private static final HashFunction FINGERPRINT = Hashing.farmHashFingerprint64();
+
+    private final File indexFile;
+    private final File journalFile;
+    private final File sealedJournalFile;
+    // Serializes rewrites of the side file
+    private final Object writeLock = new Object();
+    private LongHashSet recentFingerprints = new LongHashSet();
+    // The recent fingerprints being written to the side file, until it is mapped
+    private LongHashSet compactingFingerprints;
+    private LongBuffer indexedFingerprints = LongBuffer.allocate(0);
+    private long coveredLogBytes;
+
+    private ProcessedFileIndex(File indexFile, File journalFile) {
+        this.indexFile = indexFile;
+        this.journalFile = journalFile;
+        this.sealedJournalFile = CompletionJournal.sealedSegment(journalFile);
+    }
+
+    /**
+     * Fingerprint a complete file name.  With 64 bits the chance of any collision across ten million files is
+     * around one in three hundred thousand.
+     */
+    static long fingerprint(String completeFilename) {
+        return FINGERPRINT.hashString(completeFilename, StandardCharsets.UTF_8).asLong();
+    }
+
+    /**
+     * Fingerprint a media file from its directory and name - the same fingerprint as its complete file name,
+     * without building that string
+     */
+    static long fingerprint(MediaFile mediaFile) {
+        return FINGERPRINT.newHasher()
+                .putString(mediaFile.getAbsolutePath(), StandardCharsets.UTF_8)
+                .putString(File.separator, StandardCharsets.UTF_8)
+                .putString(mediaFile.getFileName(), StandardCharsets.UTF_8)
+                .hash().asLong();
+    }
+
+    /**
+     * Load the index, bringing the side file up to date with the legacy processed log and the completion journal
+     *
+     * @param processedLog The legacy processed log, one complete file name per line
+     * @param journalFile  The completion journal
+     * @return The loaded index
+     */
+    static ProcessedFileIndex load(File processedLog, File journalFile) throws IOException {
+        return load(processedLog, journalFile, Collections.emptyList());
+    }
+
+    /**
+     * Load the index, bringing the side file up to date with the legacy processed log, the completion journal and
+     * the processed files of other shards
+     *
+     * @param processedLog           The legacy processed log, one complete file name per line
+     * @param journalFile            The completion journal
+     * @param mergedStateDirectories Directories holding the processed logs, journals and side files of other shards
+     * @return The loaded index
+     */
+    static ProcessedFileIndex load(File processedLog, File journalFile, Collection<File> mergedStateDirectories) throws IOException {
+        ProcessedFileIndex index = new ProcessedFileIndex(new File(processedLog.getParentFile(), INDEX_FILE), journalFile);
+        index.coveredLogBytes = index.readCoveredLogBytes();
+        long logBytes = processedLog.exists() ? processedLog.length() : 0L;
+        if (index.coveredLogBytes > logBytes) {
+            log.warn("Processed log {} is shorter than its index - rebuilding the index", processedLog);
+            index.coveredLogBytes = 0L;
+            Files.deleteIfExists(index.indexFile.toPath());
+        }
+        boolean logChanged = logBytes > index.coveredLogBytes;
+        if (logChanged) {
+            int added = index.readLogTail(processedLog, index.coveredLogBytes);
+            log.info("Indexing {} processed log entries into {}", added, index.indexFile.getAbsolutePath());
+            index.coveredLogBytes = logBytes;
+        }
+        int replayed = index.replayJournal();
+        if (logChanged || replayed > 0) {
+            index.writeIndex();
+            index.resetJournal();
+        } else {
+            index.mapIndex();
+        }
+        int merged = 0;
+        for (File directory : mergedStateDirectories) {
+            merged += index.mergeFrom(directory, processedLog.getName(), journalFile.getName());
+        }
+        if (merged > 0) {
+            log.info("Merging {} files processed by other shards into {}", merged, index.indexFile.getAbsolutePath());
+            index.writeIndex();
+        }
+        return index;
+    }
+
+    /**
+     * Fold the completion journal, and any sealed segment of it, into the side file and empty it.  The journal
+     * must not be open for writing.
+     */
+    void compactJournal() throws IOException {
+        synchronized (writeLock) {
+            if (replayJournal() > 0 || hasRecentFingerprints()) {
+                writeIndex();
+                resetJournal();
+            }
+        }
+    }
+
+    /**
+     * Fold the sealed segment of a rotated journal into the side file and remove it, while the journal itself
+     * stays open
+     */
+    void compactSealedJournal() throws IOException {
+        synchronized (writeLock) {
+            if (sealedJournalFile.exists()) {
+                replayJournal(sealedJournalFile);
+                writeIndex();
+                Files.delete(sealedJournalFile.toPath());
+            }
+        }
+    }
+
+    /**
+     * Add a file completed by this run ahead of its journal record being compacted, so a long running watch can
+     * stop tracking it separately.  It is written to the side file by the next {@link #compactJournal()}.
+     */
+    synchronized void add(long fingerprint) {
+        addIfMissing(fingerprint);
+    }
+
+    boolean contains(String completeFilename) {
+        return contains(fingerprint(completeFilename));
+    }
+
+    boolean contains(MediaFile mediaFile) {
+        return contains(fingerprint(mediaFile));
+    }
+
+    synchronized boolean contains(long fingerprint) {
+        return recentFingerprints.contains(fingerprint)
+                || compactingFingerprints != null && compactingFingerprints.contains(fingerprint)
+                || binarySearch(indexedFingerprints, fingerprint);
+    }
+
+    synchronized long size() {
+        return indexedFingerprints.limit() + recentFingerprints.size()
+                + (compactingFingerprints != null ? compactingFingerprints.size() : 0);
+    }
+
+    private long readCoveredLogBytes() throws IOException {
+        if (!indexFile.exists()) {
+            return 0L;
+        }
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+            if (indexFile.length() >= HEADER_BYTES && in.readLong() == MAGIC) {
+                return in.readLong();
+            }
+        }
+        log.warn("Discarding invalid processed file index {}", indexFile.getAbsolutePath());
+        Files.delete(indexFile.toPath());
+        return 0L;
+    }
+
+    private int readLogTail(File processedLog, long offset) throws IOException {
+        int added = 0;
+        try (InputStream is = new BufferedInputStream(new FileInputStream(processedLog))) {
+            if (is.skip(offset) != offset) {
+                throw new IOException("Unable to seek to offset " + offset + " of " + processedLog);
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (StringUtils.isNotBlank(line) && recentFingerprints.add(fingerprint(line))) {
+                    added++;
+                }
+            }
+        }
+        return added;
+    }
+
+    /**
+     * Add the files processed in another shard's state directory that are not indexed here yet, without
+     * changing anything there - the shard may still be running
+     *
+     * @return The number of files added
+     */
+    private int mergeFrom(File directory, String processedLogName, String journalName) throws IOException {
+        int before = recentFingerprints.size();
+        File otherIndexFile = new File(directory, INDEX_FILE);
+        long otherCoveredLogBytes = 0L;
+        if (otherIndexFile.length() >= HEADER_BYTES) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(otherIndexFile)))) {
+                if (in.readLong() == MAGIC) {
+                    otherCoveredLogBytes = in.readLong();
+                    long count = in.readLong();
+                    for (long i = 0; i < count; i++) {
+                        addIfMissing(in.readLong());
+                    }
+                }
+            }
+        }
+        File otherLog = new File(directory, processedLogName);
+        if (otherLog.length() > otherCoveredLogBytes) {
+            readLogTail(otherLog, otherCoveredLogBytes);
+        }
+        File otherJournal = new File(directory, journalName);
+        CompletionJournal.read(CompletionJournal.sealedSegment(otherJournal), completeFilename -> addIfMissing(fingerprint(completeFilename)));
+        CompletionJournal.read(otherJournal, completeFilename -> addIfMissing(fingerprint(completeFilename)));
+        return recentFingerprints.size() - before;
+    }
+
+    private void addIfMissing(long fingerprint) {
+        if (!binarySearch(indexedFingerprints, fingerprint)) {
+            recentFingerprints.add(fingerprint);
+        }
+    }
+
+    private synchronized void addRecent(long fingerprint) {
+        recentFingerprints.add(fingerprint);
+    }
+
+    private synchronized boolean hasRecentFingerprints() {
+        return !recentFingerprints.isEmpty();
+    }
+
+    /**
+     * Replay the sealed segment of the journal, left by a rotation, then the journal itself
+     */
+    private int replayJournal() throws IOException {
+        return replayJournal(sealedJournalFile) + replayJournal(journalFile);
+    }
+
+    private int replayJournal(File file) throws IOException {
+        int replayed = CompletionJournal.replay(file, completeFilename -> addRecent(fingerprint(completeFilename)));
+        if (replayed > 0) {
+            log.info("Compacting {} completion journal records from {} into {}", replayed, file.getName(), indexFile.getAbsolutePath());
+        }
+        return replayed;
+    }
+
+    private void resetJournal() throws IOException {
+        Files.deleteIfExists(sealedJournalFile.toPath());
+        CompletionJournal.reset(journalFile);
+    }
+
+    /**
+     * Merge the recent fingerprints into the sorted side file, replacing it atomically, and map the new file in
+     * place of the one whose fingerprints it now holds along with the recent ones.  Fingerprints added meanwhile
+     * start a new recent set, so lookups and additions only wait for the new file to be mapped.
+     */
+    private void writeIndex() throws IOException {
+        LongHashSet compacting;
+        synchronized (this) {
+            compacting = recentFingerprints;
+            compactingFingerprints = compacting;
+            recentFingerprints = new LongHashSet();
+        }
+        boolean mapped = false;
+        try {
+            writeIndexFile(compacting.toSortedArray());
+            synchronized (this) {
+                mapIndex();
+                compactingFingerprints = null;
+                mapped = true;
+            }
+        } finally {
+            if (!mapped) {
+                synchronized (this) {
+                    // Kept for the next attempt
+                    for (long fingerprint : compacting.toSortedArray()) {
+                        recentFingerprints.add(fingerprint);
+                    }
+                    compactingFingerprints = null;
+                }
+            }
+        }
+    }
+
+    private void writeIndexFile(long[] recent) throws IOException {
+        File tmpFile = new File(indexFile.getPath() + ".tmp");
+        long count = 0;
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile)));
+             DataInputStream existing = indexFile.exists()
+                     ? new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))
+                     : null) {
+            out.writeLong(MAGIC);
+            out.writeLong(coveredLogBytes);
+            out.writeLong(0L);
+
+            long existingRemaining = 0;
+            if (existing != null) {
+                existing.skipBytes(2 * Long.BYTES);
+                existingRemaining = existing.readLong();
+            }
+            int recentIdx = 0;
+            long last = 0;
+            boolean first = true;
+            while (existingRemaining > 0 || recentIdx < recent.length) {
+                long next;
+                if (existingRemaining > 0) {
+                    existing.mark(Long.BYTES);
+                    long existingValue = existing.readLong();
+                    if (recentIdx < recent.length && recent[recentIdx] < existingValue) {
+                        existing.reset();
+                        next = recent[recentIdx++];
+                    } else {
+                        existingRemaining--;
+                        next = existingValue;
+                    }
+                } else {
+                    next = recent[recentIdx++];
+                }
+                if (first || next != last) {
+                    out.writeLong(next);
+                    count++;
+                    last = next;
+                    first = false;
+                }
+            }
+        }
+        try (RandomAccessFile header = new RandomAccessFile(tmpFile, "rw")) {
+            header.seek(2 * Long.BYTES);
+            header.writeLong(count);
+            header.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void mapIndex() throws IOException {
+        if (!indexFile.exists()) {
+            return;
+        }
+        try (FileChannel channel = FileChannel.open(indexFile.toPath(), StandardOpenOption.READ)) {
+            long count = (channel.size() - HEADER_BYTES) / Long.BYTES;
+            indexedFingerprints = channel.map(FileChannel.MapMode.READ_ONLY, HEADER_BYTES, count * Long.BYTES).asLongBuffer();
+        }
+    }
+
+    private static boolean binarySearch(LongBuffer sorted, long value) {
+        int low = 0;
+        int high = sorted.limit() - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            long midValue = sorted.get(mid);
+            if (midValue < value) {
+                low = mid + 1;
+            } else if (midValue > value) {
+                high = mid - 1;
+            } else {
+                return true;
+            }
+        }
+        return false;
+    }
+}
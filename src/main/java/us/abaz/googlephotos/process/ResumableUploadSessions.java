@@ -0,0 +1,123 @@
+package us.abaz.googlephotos.process;
+
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import us.abaz.googlephotos.api.PhotosApi;
+import us.abaz.googlephotos.mediafinder.MediaFile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Persisted resumable upload sessions for large files.
+ * <p>
+ * The session is started ahead of the upload so its upload URL can be saved before any bytes are sent.  A retried
+ * upload, or the next run after a crash, hands the saved URL back to the library which queries how many bytes the
+ * server already has and continues from that offset.  Sessions are keyed on the complete file name and only reused
+ * while the file size and modification time are unchanged.
+ */
+@Slf4j
+class ResumableUploadSessions {
+    private static final String SESSIONS_FILE = "GooglePhotoAlbumUploader_sessions.txt";
+    private static final String SEPARATOR = "\t";
+    // Upload URLs are only honoured by the server for a limited time
+    private static final long SESSION_TTL_MILLIS = TimeUnit.DAYS.toMillis(1);
+
+    private final PhotosApi photosApi;
+    private final File sessionsFile;
+    private final Map<String, Session> sessions = new ConcurrentHashMap<>();
+
+    ResumableUploadSessions(PhotosApi photosApi, String tempStoragePath) throws IOException {
+        this.photosApi = photosApi;
+        this.sessionsFile = new File(tempStoragePath, SESSIONS_FILE);
+        load();
+    }
+
+    /**
+     * Get the saved session for a file or start and save a new one
+     *
+     * @param mediaFile    The file to upload
+     * @param fileSize     The current file size
+     * @param lastModified The current file modification time
+     * @param mimeType     The file mime type
+     * @return The upload URL to send the file bytes to
+     */
+    String getOrStartSession(MediaFile mediaFile, long fileSize, long lastModified, String mimeType) throws IOException {
+        String path = mediaFile.getCompleteFilename();
+        Session session = sessions.get(path);
+        if (session != null && session.size == fileSize && session.lastModified == lastModified
+                && System.currentTimeMillis() - session.createdMillis < SESSION_TTL_MILLIS) {
+            log.info("Resuming upload session for {}", path);
+            return session.uploadUrl;
+        }
+        String uploadUrl = startSession(mediaFile, fileSize, mimeType);
+        sessions.put(path, new Session(fileSize, lastModified, System.currentTimeMillis(), uploadUrl));
+        save();
+        return uploadUrl;
+    }
+
+    /**
+     * Forget the session for a file once its upload has finished, or once the server rejected it
+     */
+    void remove(MediaFile mediaFile) {
+        if (sessions.remove(mediaFile.getCompleteFilename()) != null) {
+            save();
+        }
+    }
+
+    private String startSession(MediaFile mediaFile, long fileSize, String mimeType) throws IOException {
+        try {
+            return photosApi.startResumableUpload(mediaFile.getFileName(), fileSize, mimeType);
+        } catch (IOException e) {
+            throw new IOException("Unable to start upload session for " + mediaFile.getCompleteFilename(), e);
+        }
+    }
+
+    private void load() throws IOException {
+        if (!sessionsFile.exists()) {
+            return;
+        }
+        try (BufferedReader reader = new BufferedReader(new FileReader(sessionsFile, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, 5);
+                if (fields.length == 5) {
+                    sessions.put(fields[4], new Session(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3]));
+                }
+            }
+        }
+        log.info("Loaded {} resumable upload session(s)", sessions.size());
+    }
+
+    /**
+     * Rewrite the sessions file - it only ever holds the large uploads in flight so is always small
+     */
+    private synchronized void save() {
+        File tmpFile = new File(sessionsFile.getPath() + ".tmp");
+        try {
+            try (FileOutputStream out = new FileOutputStream(tmpFile);
+                 PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+                sessions.forEach((path, session) -> writer.println(session.size + SEPARATOR + session.lastModified
+                        + SEPARATOR + session.createdMillis + SEPARATOR + session.uploadUrl + SEPARATOR + path));
+                writer.flush();
+                out.getFD().sync();
+            }
+            Files.move(tmpFile.toPath(), sessionsFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.warn("Unable to save upload sessions to {}", sessionsFile, e);
+        }
+    }
+
+    @AllArgsConstructor
+    private static class Session {
+        private final long size;
+        private final long lastModified;
+        private final long createdMillis;
+        private final String uploadUrl;
+    }
+}
@@ -0,0 +1,185 @@
+package us.abaz.googlephotos.process;
+
+import lombok.extern.slf4j.Slf4j;
+import us.abaz.googlephotos.mediafinder.MediaFile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Re-queues transiently failed files with exponential backoff and jitter, and writes permanently failed files,
+ * or files that ran out of attempts, to a dead letter file that a later run can retry without a full rescan
+ */
+@Slf4j
+class RetryQueue implements AutoCloseable {
+    private static final String DEAD_LETTER_FILE = "GooglePhotoAlbumUploader_deadletter.txt";
+    private static final String SEPARATOR = "\t";
+    private static final long BASE_DELAY_MILLIS = TimeUnit.SECONDS.toMillis(10);
+    private static final long MAX_DELAY_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+    private final int maxAttempts;
+    private final File deadLetterFile;
+    private final DelayQueue<DelayedFile> retries = new DelayQueue<>();
+    private final Map<String, Integer> attemptsByPath = new ConcurrentHashMap<>();
+    private PrintWriter deadLetterWriter;
+
+    RetryQueue(String tempStoragePath, int maxAttempts) {
+        this.deadLetterFile = new File(tempStoragePath, DEAD_LETTER_FILE);
+        this.maxAttempts = Math.max(1, maxAttempts);
+    }
+
+    /**
+     * Handle a failed file - schedule a retry or dead letter it
+     *
+     * @param mediaFile The file that failed
+     * @param failure   The failure cause
+     * @return True if a retry was scheduled
+     */
+    boolean onFailure(MediaFile mediaFile, Throwable failure) {
+        int attempts = attemptsByPath.merge(mediaFile.getCompleteFilename(), 1, Integer::sum);
+        FailureClassifier.FailureType failureType = FailureClassifier.classify(failure);
+        if (failureType == FailureClassifier.FailureType.TRANSIENT && attempts < maxAttempts) {
+            long backoffMillis = Math.min(MAX_DELAY_MILLIS, BASE_DELAY_MILLIS << Math.min(attempts - 1, 16));
+            long delayMillis = backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+            log.info("Retrying {} in {} ms after attempt {} of {} failed", mediaFile.getCompleteFilename(), delayMillis, attempts, maxAttempts);
+            retries.add(new DelayedFile(mediaFile, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delayMillis)));
+            return true;
+        }
+        attemptsByPath.remove(mediaFile.getCompleteFilename());
+        writeDeadLetter(mediaFile, attempts, failureType, failure);
+        return false;
+    }
+
+    /**
+     * Queue a file to go through the pipeline again straight away, without counting an attempt - i.e. to upload
+     * its bytes after a shortcut failed
+     */
+    void requeue(MediaFile mediaFile) {
+        attemptsByPath.putIfAbsent(mediaFile.getCompleteFilename(), 0);
+        retries.add(new DelayedFile(mediaFile, System.nanoTime()));
+    }
+
+    /**
+     * Forget the attempts of a file that finally succeeded
+     */
+    void onSuccess(MediaFile mediaFile) {
+        attemptsByPath.remove(mediaFile.getCompleteFilename());
+    }
+
+    /**
+     * @return True if the file has failed before in this run
+     */
+    boolean isRetry(MediaFile mediaFile) {
+        return attemptsByPath.containsKey(mediaFile.getCompleteFilename());
+    }
+
+    /**
+     * @return A file whose backoff has elapsed, or null
+     */
+    MediaFile pollReady() {
+        DelayedFile delayedFile = retries.poll();
+        return delayedFile != null ? delayedFile.mediaFile : null;
+    }
+
+    /**
+     * Wait up to a timeout for a file whose backoff has elapsed
+     *
+     * @return The file or null if none became ready in time
+     */
+    MediaFile pollReady(long timeout, TimeUnit unit) throws InterruptedException {
+        DelayedFile delayedFile = retries.poll(timeout, unit);
+        return delayedFile != null ? delayedFile.mediaFile : null;
+    }
+
+    /**
+     * @return Retries scheduled but not yet handed out
+     */
+    int getPendingCount() {
+        return retries.size();
+    }
+
+    /**
+     * Dead letter every retry still waiting on its backoff so nothing is lost on shutdown
+     */
+    @Override
+    public void close() {
+        List<DelayedFile> remaining = new ArrayList<>();
+        retries.drainTo(remaining);
+        for (DelayedFile delayedFile : remaining) {
+            writeDeadLetter(delayedFile.mediaFile, attemptsByPath.getOrDefault(delayedFile.mediaFile.getCompleteFilename(), 0),
+                    FailureClassifier.FailureType.TRANSIENT, new InterruptedException("Shutdown before retry"));
+        }
+        synchronized (deadLetterFile) {
+            if (deadLetterWriter != null) {
+                deadLetterWriter.close();
+            }
+        }
+    }
+
+    /**
+     * Read the complete file names in a dead letter file
+     */
+    static List<String> readDeadLetters(File deadLetterFile) throws IOException {
+        List<String> paths = new ArrayList<>();
+        if (deadLetterFile.exists()) {
+            try (BufferedReader reader = new BufferedReader(new FileReader(deadLetterFile, StandardCharsets.UTF_8))) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    String path = line.split(SEPARATOR, 2)[0];
+                    if (!path.isEmpty()) {
+                        paths.add(path);
+                    }
+                }
+            }
+        }
+        return paths;
+    }
+
+    static File getDeadLetterFile(String tempStoragePath) {
+        return new File(tempStoragePath, DEAD_LETTER_FILE);
+    }
+
+    private void writeDeadLetter(MediaFile mediaFile, int attempts, FailureClassifier.FailureType failureType, Throwable failure) {
+        log.warn("Giving up on {} after {} attempt(s) - {} failure: {}", mediaFile.getCompleteFilename(), attempts, failureType, failure.getMessage());
+        synchronized (deadLetterFile) {
+            try {
+                if (deadLetterWriter == null) {
+                    deadLetterWriter = new PrintWriter(new BufferedWriter(new FileWriter(deadLetterFile, StandardCharsets.UTF_8, true)));
+                }
+                String reason = String.valueOf(failure.getMessage()).replaceAll("[\\t\\r\\n]+", " ");
+                deadLetterWriter.println(mediaFile.getCompleteFilename() + SEPARATOR + attempts + SEPARATOR + failureType + SEPARATOR + reason);
+                deadLetterWriter.flush();
+            } catch (IOException e) {
+                log.error("Error writing dead letter for " + mediaFile.getCompleteFilename(), e);
+            }
+        }
+    }
+
+    private static class DelayedFile implements Delayed {
+        private final MediaFile mediaFile;
+        private final long readyAtNanos;
+
+        DelayedFile(MediaFile mediaFile, long readyAtNanos) {
+            this.mediaFile = mediaFile;
+            this.readyAtNanos = readyAtNanos;
+        }
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(readyAtNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(getDelay(TimeUnit.NANOSECONDS), other.getDelay(TimeUnit.NANOSECONDS));
+        }
+    }
+}
@@ -0,0 +1,162 @@
+package us.abaz.googlephotos.process;
+
+import us.abaz.googlephotos.mediafinder.MediaDirectory;
+import us.abaz.googlephotos.mediafinder.MediaFile;
+
+import java.util.ArrayDeque;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounded queue of files waiting for upload, handed out in the order of a {@link SchedulingPolicy}.
+ * <p>
+ * The size balanced policy counts the large files between {@link #poll} and {@link #release}, which the upload
+ * manager calls once the file's transfer has finished, so it knows how many upload slots large files hold.
+ */
+class ScheduledFileQueue {
+    private final SchedulingPolicy policy;
+    private final int capacity;
+    private final long largeFileBytes;
+    private final int maxLargeInFlight;
+    private final Queue<MediaFile> fifo = new ArrayDeque<>();
+    private final Queue<MediaFile> large = new ArrayDeque<>();
+    private final PriorityQueue<MediaFile> bySize = new PriorityQueue<>(Comparator.comparingLong(MediaFile::getFileSize));
+    private final Map<MediaDirectory, Queue<MediaFile>> byDirectory = new LinkedHashMap<>();
+    private final Set<MediaFile> largeInFlight = ConcurrentHashMap.newKeySet();
+    private int size = 0;
+
+    /**
+     * @param policy         The order files are handed out in
+     * @param capacity       Files held before offers block
+     * @param largeFileBytes Size from which the size balanced policy treats a file as large
+     * @param uploadSlots    Number of parallel uploads
+     */
+    ScheduledFileQueue(SchedulingPolicy policy, int capacity, long largeFileBytes, int uploadSlots) {
+        this.policy = policy;
+        this.capacity = Math.max(1, capacity);
+        this.largeFileBytes = largeFileBytes;
+        this.maxLargeInFlight = Math.max(1, uploadSlots / 2);
+    }
+
+    /**
+     * Add files without waiting for space
+     */
+    synchronized void addAll(Collection<MediaFile> mediaFiles) {
+        mediaFiles.forEach(this::add);
+        notifyAll();
+    }
+
+    /**
+     * Add a file, waiting for space
+     *
+     * @return False if there was still no space after the timeout
+     */
+    synchronized boolean offer(MediaFile mediaFile, long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (size >= capacity) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        add(mediaFile);
+        notifyAll();
+        return true;
+    }
+
+    /**
+     * @return The next file by the policy, or null if there are none
+     */
+    synchronized MediaFile poll() {
+        MediaFile mediaFile = next();
+        if (mediaFile != null) {
+            size--;
+            notifyAll();
+        }
+        return mediaFile;
+    }
+
+    /**
+     * @return The next file by the policy, or null if none was added before the timeout
+     */
+    synchronized MediaFile poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long deadline = System.nanoTime() + unit.toNanos(timeout);
+        while (size == 0) {
+            long remaining = deadline - System.nanoTime();
+            if (remaining <= 0) {
+                return null;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, remaining);
+        }
+        return poll();
+    }
+
+    /**
+     * Release the upload slot of a file handed out by {@link #poll} - a no-op for files that did not hold one
+     */
+    void release(MediaFile mediaFile) {
+        largeInFlight.remove(mediaFile);
+    }
+
+    synchronized int size() {
+        return size;
+    }
+
+    synchronized boolean isEmpty() {
+        return size == 0;
+    }
+
+    private void add(MediaFile mediaFile) {
+        switch (policy) {
+            case SIZE_BALANCED:
+                (mediaFile.getFileSize() >= largeFileBytes ? large : fifo).add(mediaFile);
+                break;
+            case SHORTEST_FIRST:
+                bySize.add(mediaFile);
+                break;
+            case ALBUM_AFFINITY:
+                byDirectory.computeIfAbsent(mediaFile.getDirectory(), directory -> new ArrayDeque<>()).add(mediaFile);
+                break;
+            default:
+                fifo.add(mediaFile);
+        }
+        size++;
+    }
+
+    private MediaFile next() {
+        switch (policy) {
+            case SIZE_BALANCED:
+                // Small files fill the slots large files may not take, but never leave a slot idle
+                if (!large.isEmpty() && (largeInFlight.size() < maxLargeInFlight || fifo.isEmpty())) {
+                    MediaFile mediaFile = large.poll();
+                    largeInFlight.add(mediaFile);
+                    return mediaFile;
+                }
+                return fifo.poll();
+            case SHORTEST_FIRST:
+                return bySize.poll();
+            case ALBUM_AFFINITY:
+                Iterator<Queue<MediaFile>> directories = byDirectory.values().iterator();
+                if (!directories.hasNext()) {
+                    return null;
+                }
+                Queue<MediaFile> directoryFiles = directories.next();
+                MediaFile mediaFile = directoryFiles.poll();
+                if (directoryFiles.isEmpty()) {
+                    directories.remove();
+                }
+                return mediaFile;
+            default:
+                return fifo.poll();
+        }
+    }
+}
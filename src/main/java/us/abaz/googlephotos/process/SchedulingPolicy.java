@@ -0,0 +1,25 @@
+package us.abaz.googlephotos.process;
+
+/**
+ * Order in which discovered files are handed to the upload pipeline.  With streaming discovery only the files
+ * waiting in the bounded discovery queue can be reordered.
+ */
+public enum SchedulingPolicy {
+    /**
+     * Walk order
+     */
+    FIFO,
+    /**
+     * Keep no more than half of the upload slots on large files, filling the rest with small ones, so large
+     * files keep the bandwidth busy while small ones keep the request quota busy
+     */
+    SIZE_BALANCED,
+    /**
+     * Smallest files first, for the most files uploaded early in a run
+     */
+    SHORTEST_FIRST,
+    /**
+     * Finish one directory before starting the next, so batches fill with media items for a single album
+     */
+    ALBUM_AFFINITY
+}
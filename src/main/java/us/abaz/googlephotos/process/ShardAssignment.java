@@ -0,0 +1,113 @@
+package us.abaz.googlephotos.process;
+
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import lombok.extern.slf4j.Slf4j;
+import us.abaz.googlephotos.mediafinder.MediaFile;
+import us.abaz.googlephotos.util.PhotoUploadConfig;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Pattern;
+
+/**
+ * Splits the files among several uploader processes - on one host, or on several sharing the file system - by a
+ * stable hash of each file's album name, its directory relative to the search root.  The hash does not depend on
+ * where the search root is mounted, and every file of an album goes to the same shard so no album is created twice.
+ * <p>
+ * Each shard keeps its run state in a directory of its own and holds a lock on it while running, so a shard only
+ * runs in one process at a time.  The lock goes with the process, so a shard whose process died is resumed by
+ * starting it again on any host, from its own journal, and the shards never upload each other's files.
+ */
+@Slf4j
+class ShardAssignment implements AutoCloseable {
+    private static final String LOCK_FILE = "GooglePhotoAlbumUploader_shard.lock";
+    private static final Pattern SHARD_DIRECTORY = Pattern.compile("shard-\\d+-of-\\d+");
+    private static final HashFunction SHARD_HASH = Hashing.farmHashFingerprint64();
+
+    private final int shardIndex;
+    private final int shardCount;
+    private FileChannel lockChannel;
+
+    /**
+     * Create the state directory of this process's shard, locking it when sharded
+     *
+     * @throws IllegalStateException If another process is already running the shard
+     */
+    ShardAssignment(PhotoUploadConfig config) throws IOException {
+        this.shardIndex = config.getShardIndex();
+        this.shardCount = Math.max(1, config.getShardCount());
+        File stateDirectory = Files.createDirectories(Paths.get(config.getStatePath())).toFile();
+        if (shardCount > 1) {
+            lock(new File(stateDirectory, LOCK_FILE));
+            log.info("Uploading shard {} of {} with state in {}", shardIndex + 1, shardCount, stateDirectory);
+        }
+    }
+
+    /**
+     * @return Whether a file belongs to this process's shard
+     */
+    boolean isAssigned(MediaFile mediaFile) {
+        return shardCount <= 1
+                || Math.floorMod(SHARD_HASH.hashString(mediaFile.getAlbumName(), StandardCharsets.UTF_8).asLong(), shardCount) == shardIndex;
+    }
+
+    /**
+     * @return The state directories of every other shard layout and of unsharded runs under the temporary storage
+     * path, whose processed files are merged in on load
+     */
+    static List<File> getOtherStateDirectories(PhotoUploadConfig config) {
+        File ownDirectory = new File(config.getStatePath()).getAbsoluteFile();
+        File baseDirectory = new File(config.getTempStoragePath()).getAbsoluteFile();
+        List<File> directories = new ArrayList<>();
+        if (!baseDirectory.equals(ownDirectory)) {
+            directories.add(baseDirectory);
+        }
+        File[] shardDirectories = baseDirectory.listFiles(file -> file.isDirectory() && SHARD_DIRECTORY.matcher(file.getName()).matches());
+        if (shardDirectories != null) {
+            for (File directory : shardDirectories) {
+                if (!directory.equals(ownDirectory)) {
+                    directories.add(directory);
+                }
+            }
+        }
+        return directories;
+    }
+
+    @Override
+    public void close() {
+        if (lockChannel != null) {
+            try {
+                // Closing the channel releases the lock
+                lockChannel.close();
+            } catch (IOException e) {
+                log.debug("Unable to release shard lock", e);
+            }
+        }
+    }
+
+    private void lock(File lockFile) throws IOException {
+        lockChannel = FileChannel.open(lockFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        FileLock lock;
+        try {
+            lock = lockChannel.tryLock();
+        } catch (IOException e) {
+            // Some network file systems do not support locks - the shard is then only as exclusive as its operator
+            log.warn("Unable to lock {} - make sure shard {} of {} is not running elsewhere: {}", lockFile, shardIndex + 1, shardCount, e.getMessage());
+            return;
+        }
+        if (lock == null) {
+            lockChannel.close();
+            lockChannel = null;
+            throw new IllegalStateException(String.format("Shard %d of %d is already running - %s is locked", shardIndex + 1, shardCount, lockFile));
+        }
+    }
+}
@@ -1,68 +1,100 @@
 package us.abaz.googlephotos.process;
 
-import com.google.api.core.ApiFuture;
-import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableList;
-import com.google.common.util.concurrent.MoreExecutors;
-import com.google.common.util.concurrent.RateLimiter;
-import com.google.photos.library.v1.PhotosLibraryClient;
-import com.google.photos.library.v1.proto.BatchCreateMediaItemsRequest;
-import com.google.photos.library.v1.upload.UploadMediaItemRequest;
 import com.google.photos.library.v1.upload.UploadMediaItemResponse;
 import com.google.photos.types.proto.Album;
 import lombok.SneakyThrows;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.commons.lang3.StringUtils;
+import org.apache.commons.io.FileUtils;
+import us.abaz.googlephotos.api.GooglePhotosApi;
+import us.abaz.googlephotos.api.LazyPhotosApi;
+import us.abaz.googlephotos.api.PhotosApi;
 import us.abaz.googlephotos.mediafinder.MediaFile;
+import us.abaz.googlephotos.mediafinder.MimeTypes;
+import us.abaz.googlephotos.metrics.Latency;
+import us.abaz.googlephotos.metrics.MetricsReporter;
+import us.abaz.googlephotos.metrics.UploadMetrics;
+import us.abaz.googlephotos.ratelimit.AdaptiveRateLimiter;
+import us.abaz.googlephotos.ratelimit.ApiEndpoint;
+import us.abaz.googlephotos.ratelimit.ApiRateLimiters;
+import us.abaz.googlephotos.ratelimit.BandwidthPacer;
+import us.abaz.googlephotos.ratelimit.BandwidthSchedule;
+import us.abaz.googlephotos.ratelimit.PacedRandomAccessFile;
 import us.abaz.googlephotos.util.PhotoUploadConfig;
-import us.abaz.googlephotos.util.PhotosLibraryClientFactory;
-import us.abaz.googlephotos.util.SimpleProgressRenderer;
 
-import java.io.FileNotFoundException;
+import java.io.File;
 import java.io.RandomAccessFile;
-import java.net.URLConnection;
-import java.nio.file.Files;
 import java.nio.file.Paths;
 import java.time.Duration;
-import java.time.Instant;
-import java.util.List;
 import java.util.concurrent.CountDownLatch;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
 
 @Slf4j
 @SuppressWarnings("UnstableApiUsage")
 public class UploadManager implements AutoCloseable {
-    private static final List<String> REQUIRED_SCOPES =
-            ImmutableList.of(
-                    "https://www.googleapis.com/auth/photoslibrary.readonly",
-                    "https://www.googleapis.com/auth/photoslibrary.appendonly");
     private static final String FILE_ACCESS_MODE = "r";
-    // Maximum number of requests initiated per minute - these are rate limited on the Google side to 10
-    private static final int GOOGLE_MAX_REQUESTS_PER_MINUTE = 15;
+    private static final long RETRY_POLL_MILLIS = 250;
+    // Tasks that may queue for each pipeline stage, per worker in that stage
+    private static final int STAGE_QUEUE_FACTOR = 2;
 
     private final PhotoUploadConfig config;
 
-    private final PhotosLibraryClient photosLibraryClient;
+    private final PhotosApi photosApi;
+    private final ShardAssignment shardAssignment;
     private final AlbumManager albumManager;
-    private final Semaphore uploadSlotSemaphore;
     private final CountDownLatch shutdownLatch = new CountDownLatch(1);
-    private final RateLimiter rateLimiter = RateLimiter.create((double) GOOGLE_MAX_REQUESTS_PER_MINUTE / 60.0);
-    private final AtomicInteger errorCount = new AtomicInteger(0);
+    private final ApiRateLimiters rateLimiters = new ApiRateLimiters();
+    private final ResumableUploadSessions uploadSessions;
+    private final UploadTokenLedger tokenLedger;
+    private final RetryQueue retryQueue;
+    private final BandwidthPacer bandwidthPacer;
+    private final LosslessTranscoder transcoder;
+    private final int chunkSizeBytes;
+    private final long resumableThresholdBytes;
+    private final UploadMetrics metrics = new UploadMetrics();
+    private final AtomicInteger inFlightCount = new AtomicInteger(0);
+    private final AtomicInteger activeTransfers = new AtomicInteger(0);
 
     private volatile boolean forcedShutdown = false;
 
-    @SneakyThrows
     public UploadManager(PhotoUploadConfig config) {
+        // Credentials and clients are only needed once a file turns out to need uploading
+        this(config, new LazyPhotosApi(() -> GooglePhotosApi.create(config.getCredFilePath())));
+    }
+
+    /**
+     * @param config    The upload configuration
+     * @param photosApi The Photos API to upload to - closed along with the upload manager
+     */
+    @SneakyThrows
+    public UploadManager(PhotoUploadConfig config, PhotosApi photosApi) {
         this.config = config;
-        photosLibraryClient = PhotosLibraryClientFactory.createClient(config.getCredFilePath(), REQUIRED_SCOPES);
-        albumManager = new AlbumManager(photosLibraryClient);
-        uploadSlotSemaphore = new Semaphore(config.getMaxParallelUploads(), true);
+        this.photosApi = photosApi;
+        shardAssignment = new ShardAssignment(config);
+        albumManager = new AlbumManager(photosApi, rateLimiters, metrics, config.getStatePath());
+        uploadSessions = new ResumableUploadSessions(photosApi, config.getStatePath());
+        chunkSizeBytes = Math.toIntExact(FileUtils.ONE_MB * config.getUploadChunkSizeMb());
+        resumableThresholdBytes = FileUtils.ONE_MB * config.getResumableThresholdMb();
+        // Files sent in a single chunk are cheaper to send again than to record
+        tokenLedger = new UploadTokenLedger(config.getStatePath(), chunkSizeBytes);
+        retryQueue = new RetryQueue(config.getStatePath(), config.getMaxAttempts());
+        bandwidthPacer = new BandwidthPacer(config.getBandwidthLimitKb() * FileUtils.ONE_KB, BandwidthSchedule.parse(config.getBandwidthSchedule()));
+        transcoder = config.isTranscodeLossless()
+                ? new LosslessTranscoder(config.getStatePath(), config.getTranscodeCacheMb() * FileUtils.ONE_MB)
+                : null;
     }
 
     public void close() {
-        photosLibraryClient.close();
+        albumManager.close();
+        tokenLedger.close();
+        bandwidthPacer.close();
+        if (transcoder != null) {
+            transcoder.close();
+        }
+        photosApi.close();
+        shardAssignment.close();
         shutdownLatch.countDown();
         log.info("Photos client closed");
     }
@@ -75,171 +107,414 @@ public class UploadManager implements AutoCloseable {
     }
 
     /**
-     * Begin the file upload batch job
+     * Begin the file upload batch job.  Files flow through pipeline stages with bounded queues between them -
+     * classify (album lookup, mime type, size), transfer bytes, then create media items in batches - and the
+     * completion journal writes on its own thread.  Each stage has its own workers and a full stage blocks the
+     * one in front of it, so a slow album creation or create call holds back new work instead of idling uploads.
      */
     @SneakyThrows
     public void startUpload() {
-        try (MediaItemManager mediaItemManager = new MediaItemManager(config)) {
-            int progress = 0;
-            Instant startInstant = Instant.now();
-            int totalFiles = mediaItemManager.getTotalFiles();
-            MediaFile curMediaFile = mediaItemManager.getNextFile();
+        // Samples for the whole run, including draining the pipeline, so it is closed once everything else is
+        UploadUtilization utilization = new UploadUtilization(config.getSchedulingPolicy(),
+                rateLimiters.get(ApiEndpoint.UPLOAD_BYTES), activeTransfers::get, metrics, config.getMaxParallelUploads());
+        // Albums are resolved in parallel as soon as discovery knows their names so the classify stage only does
+        // in-memory lookups
+        try (MetricsReporter metricsReporter = new MetricsReporter(metrics, config.getMetricsFile(), config.getMetricsIntervalSeconds());
+             MediaItemManager mediaItemManager = new MediaItemManager(config, metrics, shardAssignment, albumNames -> albumManager.prepareAlbums(
+                albumNames.stream().map(albumName -> config.getAlbumNamePrefix() + albumName).collect(Collectors.toList())));
+             RetryQueue retries = retryQueue;
+             ContentDeduplicator deduplicator = config.isDeduplicateContent()
+                     ? new ContentDeduplicator(config, mediaItemManager::getNextFile)
+                     : null;
+             MediaItemBatcher mediaItemBatcher = new MediaItemBatcher(
+                     photosApi,
+                     rateLimiters,
+                     metrics,
+                     config.getBatchSize(),
+                     Duration.ofSeconds(config.getBatchMaxDelaySeconds()),
+                     config.getCommitParallelism(),
+                     (mediaFile, mediaItemId) -> handleCreated(mediaItemManager, deduplicator, mediaFile, mediaItemId),
+                     this::handleFailure,
+                     (mediaFile, mediaItemId) -> handleExistingRejected(deduplicator, mediaFile, mediaItemId));
+             // Stages close in reverse order so each drains into the next before that one is closed
+             PipelineStage transferStage = new PipelineStage("upload-transfer",
+                     config.getMaxParallelUploads(), config.getMaxParallelUploads() * STAGE_QUEUE_FACTOR);
+             PipelineStage transcodeStage = transcoder != null
+                     ? new PipelineStage("upload-transcode", config.getTranscodeParallelism(), config.getTranscodeParallelism() * STAGE_QUEUE_FACTOR)
+                     : null;
+             PipelineStage classifyStage = new PipelineStage("upload-classify",
+                     config.getClassifyParallelism(), config.getClassifyParallelism() * STAGE_QUEUE_FACTOR)) {
+            registerGauges(mediaItemManager, mediaItemBatcher, transferStage, classifyStage);
+            // With deduplication, files come through the deduplicator so their content is hashed ahead of dispatch
+            Supplier<MediaFile> fileSource = deduplicator != null ? deduplicator::getNextFile : mediaItemManager::getNextFile;
+            MediaFile curMediaFile = getNextFile(fileSource, mediaItemBatcher);
             while (!forcedShutdown && curMediaFile != null) {
-                // Get or create an Album for the current media file
-                String albumName = config.getAlbumNamePrefix() + curMediaFile.getAlbumName();
-                Album album = albumManager.getOrCreateAlbum(albumName);
-
-                if (!forcedShutdown) {
-                    // Initiate the next file upload - this will block until 1) an upload slot is available and
-                    // 2) rate limiting is satisfied
-                    int inProgress = uploadNextFile(album, mediaItemManager, curMediaFile);
-
-                    double rate = (double) Math.max(progress, 1) / (double) Math.max(Duration.between(startInstant, Instant.now()).toMinutes(), 1);
+                MediaFile mediaFile = curMediaFile;
+                String albumName = config.getAlbumNamePrefix() + mediaFile.getAlbumName();
 
-                    progress++;
+                // Blocks while the classify stage is full - back-pressure from every later stage ends up here
+                inFlightCount.incrementAndGet();
+                classifyStage.submit(() -> classifyFile(mediaItemManager, mediaFile, albumName, deduplicator, mediaItemBatcher, transcodeStage, transferStage));
 
-                    SimpleProgressRenderer.renderProgress(
-                            progress,
-                            totalFiles,
-                            inProgress,
-                            errorCount.get(),
-                            String.format("\tRate: %.2f/minute\tCurrent Album: '%s' Current File: '%s'", rate, albumName, curMediaFile.getFileName())
-                    );
-
-                    // Find the next file to process
-                    curMediaFile = mediaItemManager.getNextFile();
+                // Retries were already counted on their first attempt.  Progress is rendered from the metrics
+                // on the reporter's own timer.
+                if (retries.isRetry(mediaFile)) {
+                    metrics.setCurrentFile(albumName, mediaFile.getFileName());
+                } else {
+                    metrics.recordDispatched(albumName, mediaFile.getFileName());
                 }
+
+                // Find the next file to process
+                curMediaFile = getNextFile(fileSource, mediaItemBatcher);
             }
+            metricsReporter.stopConsole();
 
             // Orderly shutdown
             System.out.print("\n");
-            int activeCount = getActiveUploadCount();
+            int activeCount = getInFlightCount();
             while (activeCount > 0) {
-                System.out.print(String.format("\rWaiting for %d upload(s) still in progress to complete...", getActiveUploadCount()));
+                System.out.print(String.format("\rWaiting for %d upload(s) still in progress to complete...", getInFlightCount()));
                 Thread.sleep(2500);
-                activeCount = getActiveUploadCount();
+                activeCount = getInFlightCount();
+            }
+            // Commit any upload tokens still waiting on a partially filled batch
+            if (mediaItemBatcher.getPendingCount() > 0) {
+                System.out.print(String.format("\nCreating %d remaining media item(s)...", mediaItemBatcher.getPendingCount()));
+                mediaItemBatcher.flushAll();
             }
             System.out.println("\nShutdown complete.");
+            log.info("Final rate limits: {}", rateLimiters.describeRates());
         } catch (Exception e) {
             log.error("Unknown exception during upload processing", e);
             System.exit(-1);
+        } finally {
+            utilization.close();
         }
     }
 
     /**
-     * Upload the next file.  This will block until
-     * 1) an upload slot is available and
-     * 2) rate limiting is satisfied
+     * Register the gauges read on each metrics snapshot - pipeline occupancy, queue depths and rate limits
+     */
+    private void registerGauges(MediaItemManager mediaItemManager,
+                                MediaItemBatcher mediaItemBatcher,
+                                PipelineStage transferStage,
+                                PipelineStage classifyStage) {
+        metrics.registerGauge(MetricsReporter.FILES_TOTAL_GAUGE, mediaItemManager::getTotalFiles);
+        metrics.registerGauge(MetricsReporter.DISCOVERY_COMPLETE_GAUGE, () -> mediaItemManager.isDiscoveryComplete() ? 1 : 0);
+        metrics.registerGauge(MetricsReporter.FILES_IN_FLIGHT_GAUGE, inFlightCount::get);
+        metrics.registerGauge("uploads_in_progress", activeTransfers::get);
+        metrics.registerGauge("queue_depth{stage=\"classify\"}", classifyStage::getQueuedCount);
+        metrics.registerGauge("queue_depth{stage=\"transfer\"}", transferStage::getQueuedCount);
+        metrics.registerGauge("queue_depth{stage=\"create\"}", mediaItemBatcher::getPendingCount);
+        metrics.registerGauge("queue_depth{stage=\"retry\"}", retryQueue::getPendingCount);
+        metrics.registerGauge("upload_bandwidth_limit_bytes_per_second", bandwidthPacer::getEffectiveBytesPerSecond);
+        metrics.registerGauge("upload_bandwidth_paused", () -> bandwidthPacer.isPaused() ? 1 : 0);
+        metrics.registerCounter("upload_bandwidth_wait_millis_total", bandwidthPacer::getTotalWaitMillis);
+        if (transcoder != null) {
+            metrics.registerCounter("transcoded_files_total", transcoder::getTranscodedCount);
+            metrics.registerCounter("transcode_bytes_saved_total", transcoder::getBytesSaved);
+        }
+        for (ApiEndpoint endpoint : ApiEndpoint.values()) {
+            AdaptiveRateLimiter rateLimiter = rateLimiters.get(endpoint);
+            String label = "{endpoint=\"" + endpoint.getDisplayName() + "\"}";
+            metrics.registerGauge("rate_limit_per_minute" + label, () -> Math.round(rateLimiter.getRatePerMinute()));
+            metrics.registerCounter("rate_limit_wait_millis_total" + label, () -> TimeUnit.NANOSECONDS.toMillis(rateLimiter.getTotalWaitNanos()));
+        }
+    }
+
+    /**
+     * Get the next file to process - a retry whose backoff has elapsed, otherwise the next new file.  Once there
+     * are no new files this waits for in flight files and batches to finish, since any of them may still fail
+     * and be retried, and for the backoff of any retries already scheduled.  In watch mode this only returns null
+     * once the upload is stopped.
      *
-     * @param album            The album to upload to
-     * @param mediaItemManager The media item manager to use
-     * @param curMediaFile     The current file
-     * @return Total upload slots currently in use
+     * @param fileSource       The source of new files
+     * @param mediaItemBatcher The batcher holding uncommitted media items
+     * @return The next file or null once there is nothing left to do
      */
     @SneakyThrows
-    private int uploadNextFile(Album album, MediaItemManager mediaItemManager, MediaFile curMediaFile) {
-        // Block until an upload slot becomes available
-        uploadSlotSemaphore.acquire();
-        // Rate limit to 10 requests per minute or the Google Photos API will reject any requests beyond this rate
-        rateLimiter.acquire();
-
-        initiateFileUpload(album, mediaItemManager, curMediaFile);
-
-        return getActiveUploadCount();
+    private MediaFile getNextFile(Supplier<MediaFile> fileSource, MediaItemBatcher mediaItemBatcher) {
+        MediaFile mediaFile = retryQueue.pollReady();
+        if (mediaFile == null) {
+            mediaFile = fileSource.get();
+        }
+        while (mediaFile == null && !forcedShutdown) {
+            mediaFile = retryQueue.pollReady(RETRY_POLL_MILLIS, TimeUnit.MILLISECONDS);
+            if (config.isWatch()) {
+                // Watching never runs out of files - keep checking for new ones until stopped, leaving batches
+                // to fill for up to their maximum delay rather than committing each new file on its own
+                if (mediaFile == null) {
+                    mediaFile = fileSource.get();
+                }
+            } else if (mediaFile == null && getInFlightCount() == 0) {
+                // Commit now rather than waiting out the batch delay - failures are queued for retry before
+                // the commit finishes
+                mediaItemBatcher.flushAll();
+                if (retryQueue.getPendingCount() == 0) {
+                    return null;
+                }
+            }
+        }
+        return mediaFile;
     }
 
-    private int getActiveUploadCount() {
-        return config.getMaxParallelUploads() - uploadSlotSemaphore.availablePermits();
+    /**
+     * @return Files handed to the pipeline that are not yet uploaded, or failed
+     */
+    private int getInFlightCount() {
+        return inFlightCount.get();
     }
 
     /**
-     * Infer the mime type of a file
+     * Get the mime type of a file - the type resolved from its extension at discovery, checked against the file
+     * header when sniffing is enabled
      *
-     * @param fileName The file name to test
+     * @param mediaFile The media file
      * @return The String representing the file mime type
      */
-    @SneakyThrows
-    private String inferFileMimeType(String fileName) {
-        String mimeType = URLConnection.guessContentTypeFromName(fileName);
-        return StringUtils.isNotBlank(mimeType) ? mimeType : Files.probeContentType(Paths.get(fileName));
+    private String getFileMimeType(MediaFile mediaFile) {
+        return config.isSniffMimeType()
+                ? MimeTypes.sniff(Paths.get(mediaFile.getCompleteFilename()), mediaFile.getMimeType())
+                : mediaFile.getMimeType();
     }
 
     /**
-     * Initiate the asynchronous file upload to an album
+     * Classify stage - resolve the album, mime type and size of a file, then hand it to the transfer stage, or the
+     * transcode stage for images that may be re-encoded, or straight to the batcher when its content was already
+     * uploaded
      *
-     * @param album     The album to upload to
-     * @param mediaFile The media file to upload
+     * @param mediaItemManager The media item manager to release the file's upload slot with
+     * @param mediaFile        The media file to classify
+     * @param albumName        The name of the album for the file
+     * @param deduplicator     The content deduplicator, if enabled
+     * @param mediaItemBatcher The batcher that creates the media item
+     * @param transcodeStage   The stage that re-encodes images before upload, if enabled
+     * @param transferStage    The stage that uploads the file bytes
      */
-    @SneakyThrows
-    private void initiateFileUpload(Album album, MediaItemManager mediaItemManager, MediaFile mediaFile) {
-        String fileName = mediaFile.getCompleteFilename();
+    private void classifyFile(MediaItemManager mediaItemManager,
+                              MediaFile mediaFile,
+                              String albumName,
+                              ContentDeduplicator deduplicator,
+                              MediaItemBatcher mediaItemBatcher,
+                              PipelineStage transcodeStage,
+                              PipelineStage transferStage) {
+        boolean handedOff = false;
         try {
-            log.debug("Processing file {} for album {}", mediaFile.getFileName(), mediaFile.getAlbumName());
-            UploadMediaItemRequest.Builder uploadRequestBuilder = UploadMediaItemRequest.newBuilder();
-            uploadRequestBuilder
-                    .setMimeType(inferFileMimeType(fileName))
-                    .setDataFile(new RandomAccessFile(fileName, FILE_ACCESS_MODE));
-
-            // Kick off the async upload
-            ApiFuture<UploadMediaItemResponse> uploadResponseFuture =
-                    photosLibraryClient.uploadMediaItemCallable()
-                            .futureCall(uploadRequestBuilder.build());
-            uploadResponseFuture.addListener(
-                    buildHandleUploadFinishedRunnable(uploadResponseFuture, mediaItemManager, album, mediaFile),
-                    MoreExecutors.directExecutor());
-        } catch (FileNotFoundException e) {
-            log.error("Error uploading file " + fileName, e);
-            // Release the semaphore on error
-            uploadSlotSemaphore.release();
-            errorCount.addAndGet(1);
+            Album album = albumManager.getOrCreateAlbum(albumName);
+            String existingMediaItemId = deduplicator != null ? deduplicator.findUploadedMediaItemId(mediaFile) : null;
+            if (existingMediaItemId != null) {
+                // Same content was already uploaded - add the existing media item rather than sending the bytes
+                log.debug("Adding existing media item {} for duplicate file {}", existingMediaItemId, mediaFile.getCompleteFilename());
+                mediaItemBatcher.addExisting(album, mediaFile, existingMediaItemId);
+            } else {
+                File file = new File(mediaFile.getCompleteFilename());
+                long fileSize = file.length();
+                UploadTask uploadTask = new UploadTask(album, mediaFile, file,
+                        getFileMimeType(mediaFile), fileSize, fileSize, file.lastModified(), false);
+                String savedUploadToken = tokenLedger.take(mediaFile, uploadTask.sourceSize, uploadTask.lastModified);
+                if (savedUploadToken != null) {
+                    // The bytes were already accepted - only the media item is missing
+                    mediaItemBatcher.add(album, mediaFile, savedUploadToken);
+                } else {
+                    if (transcodeStage != null && transcoder.isCandidate(uploadTask.mimeType)) {
+                        transcodeStage.submit(() -> transcodeFile(mediaItemManager, uploadTask, mediaItemBatcher, transferStage));
+                    } else {
+                        transferStage.submit(() -> transferFile(mediaItemManager, uploadTask, mediaItemBatcher));
+                    }
+                    handedOff = true;
+                }
+            }
+        } catch (Exception e) {
+            log.error("Error preparing file " + mediaFile.getCompleteFilename(), e);
+            handleFailure(mediaFile, e);
+        } finally {
+            if (!handedOff) {
+                mediaItemManager.releaseUploadSlot(mediaFile);
+                inFlightCount.decrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * Transcode stage - re-encode an image as PNG when that is lossless and smaller, then hand it to the transfer
+     * stage.  The media item keeps the original file name.
+     *
+     * @param mediaItemManager The media item manager to release the file's upload slot with
+     * @param uploadTask       The classified image
+     * @param mediaItemBatcher The batcher that creates the media item once the bytes are uploaded
+     * @param transferStage    The stage that uploads the file bytes
+     */
+    private void transcodeFile(MediaItemManager mediaItemManager, UploadTask uploadTask, MediaItemBatcher mediaItemBatcher, PipelineStage transferStage) {
+        boolean handedOff = false;
+        File pngFile = null;
+        try {
+            pngFile = transcoder.transcode(uploadTask.mediaFile, uploadTask.size);
+            UploadTask transferTask = pngFile != null
+                    ? new UploadTask(uploadTask.album, uploadTask.mediaFile, pngFile, LosslessTranscoder.PNG_MIME_TYPE,
+                    pngFile.length(), uploadTask.sourceSize, uploadTask.lastModified, true)
+                    : uploadTask;
+            transferStage.submit(() -> transferFile(mediaItemManager, transferTask, mediaItemBatcher));
+            handedOff = true;
+        } catch (Exception e) {
+            log.error("Error re-encoding file " + uploadTask.mediaFile.getCompleteFilename(), e);
+            handleFailure(uploadTask.mediaFile, e);
+        } finally {
+            if (!handedOff) {
+                if (pngFile != null) {
+                    transcoder.release(pngFile);
+                }
+                mediaItemManager.releaseUploadSlot(uploadTask.mediaFile);
+                inFlightCount.decrementAndGet();
+            }
         }
     }
 
     /**
-     * Handle a callback when the upload request finishes
+     * Transfer stage - upload the bytes of a file and queue its upload token for media item creation.  The
+     * upload endpoint rate limit is applied here so waiting on it only holds a transfer worker.
      *
-     * @param uploadResponseFuture The future that performed the request
-     * @param album                The album for the request
-     * @param mediaFile            The media file for the request
-     * @return A {@link Runnable} that processes the request result
+     * @param mediaItemManager The media item manager to release the file's upload slot with
+     * @param uploadTask       The classified file to upload
+     * @param mediaItemBatcher The batcher that creates the media item once the bytes are uploaded
      */
-    private Runnable buildHandleUploadFinishedRunnable(
-            ApiFuture<UploadMediaItemResponse> uploadResponseFuture,
-            MediaItemManager mediaItemManager,
-            Album album,
-            MediaFile mediaFile) {
-        return () -> {
+    private void transferFile(MediaItemManager mediaItemManager, UploadTask uploadTask, MediaItemBatcher mediaItemBatcher) {
+        MediaFile mediaFile = uploadTask.mediaFile;
+        String fileName = mediaFile.getCompleteFilename();
+        AdaptiveRateLimiter uploadRateLimiter = rateLimiters.get(ApiEndpoint.UPLOAD_BYTES);
+        // Large files go through a saved resumable session so a failed or interrupted upload continues
+        // from the last byte the server received rather than from zero.  A re-encoded file is written afresh for
+        // each attempt, so its session could not be resumed.
+        boolean resumable = !uploadTask.transcoded && uploadTask.size >= resumableThresholdBytes;
+        try (RandomAccessFile dataFile = new PacedRandomAccessFile(uploadTask.dataFile, FILE_ACCESS_MODE, bandwidthPacer)) {
+            log.debug("Processing file {} for album {}", mediaFile.getFileName(), mediaFile.getAlbumName());
+            uploadRateLimiter.acquire();
+            String uploadUrl = resumable
+                    ? uploadSessions.getOrStartSession(mediaFile, uploadTask.size, uploadTask.lastModified, uploadTask.mimeType)
+                    : null;
+
+            long start = System.nanoTime();
+            UploadMediaItemResponse uploadResponse;
+            activeTransfers.incrementAndGet();
             try {
-                UploadMediaItemResponse uploadResponse = uploadResponseFuture.get();
-                // Check if the upload is successful
-                if (uploadResponse.getUploadToken().isPresent()) {
-                    BatchCreateMediaItemsRequest.Builder createRequestBuilder =
-                            BatchCreateMediaItemsRequest.newBuilder();
-                    createRequestBuilder
-                            .setAlbumId(album.getId())
-                            .addNewMediaItemsBuilder()
-                            .getSimpleMediaItemBuilder()
-                            .setFileName(mediaFile.getCompleteFilename())
-                            .setUploadToken(uploadResponse.getUploadToken().get());
-                    photosLibraryClient.batchCreateMediaItems(createRequestBuilder.build());
-
-                    // Success - mark the file as uploaded
-                    mediaItemManager.markMediaFileUploaded(mediaFile);
+                uploadResponse = photosApi.uploadMediaItem(dataFile, uploadTask.mimeType, chunkSizeBytes, uploadUrl).get();
+            } finally {
+                activeTransfers.decrementAndGet();
+                metrics.recordLatency(Latency.UPLOAD_BYTES, System.nanoTime() - start);
+            }
+            // Check if the upload is successful
+            if (uploadResponse.getUploadToken().isPresent()) {
+                uploadRateLimiter.onSuccess();
+                metrics.recordBytesUploaded(uploadTask.size);
+                if (resumable) {
+                    uploadSessions.remove(mediaFile);
+                }
+                // Save and queue the token - the file is marked as uploaded once its batch is committed
+                String uploadToken = uploadResponse.getUploadToken().get();
+                tokenLedger.record(mediaFile, uploadTask.sourceSize, uploadTask.lastModified, uploadToken);
+                mediaItemBatcher.add(uploadTask.album, mediaFile, uploadToken);
+            } else {
+                UploadMediaItemResponse.Error error = uploadResponse.getError().orElse(null);
+                // Keep the saved session only while the server still offers to resume it
+                if (resumable && (error == null || !error.getResumeUrl().isPresent())) {
+                    uploadSessions.remove(mediaFile);
+                }
+                if (error != null) {
+                    throw new RuntimeException("Error uploading file " + mediaFile, error.getCause());
                 } else {
-                    UploadMediaItemResponse.Error error = uploadResponse.getError().orElse(null);
-                    if (error != null) {
-                        throw new RuntimeException("Error uploading file " + mediaFile, error.getCause());
-                    } else {
-                        throw new RuntimeException("Error uploading file - unknown cause");
-                    }
+                    throw new RuntimeException("Error uploading file - unknown cause");
                 }
-            } catch (Exception e) {
-                log.error("Error uploading file", e);
-                errorCount.addAndGet(1);
-            } finally {
-                // Release the upload slot
-                uploadSlotSemaphore.release();
             }
-        };
+        } catch (Exception e) {
+            log.error("Error uploading file " + fileName, e);
+            uploadRateLimiter.onFailure(e);
+            handleFailure(mediaFile, e);
+        } finally {
+            if (uploadTask.transcoded) {
+                transcoder.release(uploadTask.dataFile);
+            }
+            mediaItemManager.releaseUploadSlot(mediaFile);
+            inFlightCount.decrementAndGet();
+        }
+    }
+
+    /**
+     * Handle a media item that was created, or an existing media item that was added to an album
+     *
+     * @param mediaItemManager The media item manager to mark the file uploaded with
+     * @param deduplicator     The content deduplicator, if enabled
+     * @param mediaFile        The media file
+     * @param mediaItemId      The id of the media item
+     */
+    private void handleCreated(MediaItemManager mediaItemManager, ContentDeduplicator deduplicator, MediaFile mediaFile, String mediaItemId) {
+        mediaItemManager.markMediaFileUploaded(mediaFile);
+        tokenLedger.remove(mediaFile);
+        retryQueue.onSuccess(mediaFile);
+        metrics.recordUploaded();
+        if (deduplicator != null) {
+            deduplicator.recordUploaded(mediaFile, mediaItemId);
+        }
+    }
+
+    /**
+     * Handle a duplicate file whose existing media item could not be added to its album - forget the media item
+     * for its content and upload its bytes instead, rather than failing every later copy the same way
+     *
+     * @param deduplicator The content deduplicator that found the media item
+     * @param mediaFile    The media file
+     * @param mediaItemId  The id of the media item that was refused
+     */
+    private void handleExistingRejected(ContentDeduplicator deduplicator, MediaFile mediaFile, String mediaItemId) {
+        deduplicator.forgetUploaded(mediaFile, mediaItemId);
+        retryQueue.requeue(mediaFile);
+    }
+
+    /**
+     * Handle a file that failed to upload or whose media item could not be created - transient failures are
+     * retried, anything else is dead lettered and counted as an error
+     *
+     * @param mediaFile The media file that failed
+     * @param cause     The failure cause
+     */
+    private void handleFailure(MediaFile mediaFile, Throwable cause) {
+        log.debug("Upload of {} failed", mediaFile.getCompleteFilename(), cause);
+        if (cause instanceof MediaItemCreationException) {
+            // The server refused this media item - its token may be what it refused, so send the bytes again
+            tokenLedger.remove(mediaFile);
+        } else if (cause instanceof AlbumUnavailableException) {
+            albumManager.evictAlbum(((AlbumUnavailableException) cause).getAlbumId());
+        }
+        if (retryQueue.onFailure(mediaFile, cause)) {
+            metrics.recordRetry();
+        } else {
+            metrics.recordFailed();
+        }
+    }
+
+    /**
+     * A file that has been through the classify stage and is waiting for a transfer worker - the bytes sent are
+     * those of the data file, which is a re-encoded copy for transcoded images.  The source size and modification
+     * time are those of the file itself.
+     */
+    private static class UploadTask {
+        private final Album album;
+        private final MediaFile mediaFile;
+        private final File dataFile;
+        private final String mimeType;
+        private final long size;
+        private final long sourceSize;
+        private final long lastModified;
+        private final boolean transcoded;
+
+        UploadTask(Album album, MediaFile mediaFile, File dataFile, String mimeType, long size, long sourceSize,
+                   long lastModified, boolean transcoded) {
+            this.album = album;
+            this.mediaFile = mediaFile;
+            this.dataFile = dataFile;
+            this.mimeType = mimeType;
+            this.size = size;
+            this.sourceSize = sourceSize;
+            this.lastModified = lastModified;
+            this.transcoded = transcoded;
+        }
     }
 }
@@ -0,0 +1,182 @@
+package us.abaz.googlephotos.process;
+
+import lombok.AllArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import us.abaz.googlephotos.mediafinder.MediaFile;
+
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Upload tokens whose bytes the server has accepted but whose media items are not created yet.
+ * <p>
+ * A file whose create call fails, or whose run is killed before its batch is committed, goes straight to media
+ * item creation with its saved token when it comes round again instead of sending its bytes a second time.
+ * Tokens are kept in memory for retries within a run, and appended to a ledger file for files of at least the
+ * persist size so a restart can use them too - small files are cheaper to send again than to record.  Tokens
+ * are keyed on the complete file name, only reused while the file size and modification time are unchanged and
+ * dropped before the server expires them.
+ */
+@Slf4j
+class UploadTokenLedger implements AutoCloseable {
+    private static final String LEDGER_FILE = "GooglePhotoAlbumUploader_tokens.txt";
+    private static final String SEPARATOR = "\t";
+    private static final String REMOVED = "-";
+    // Tokens are honoured for about a day - leave room for the batch delay and the create call
+    private static final long TOKEN_TTL_MILLIS = TimeUnit.HOURS.toMillis(23);
+    // Appended records beyond this many per live token trigger a rewrite of the ledger
+    private static final int COMPACT_RATIO = 4;
+    private static final int COMPACT_MIN_RECORDS = 1000;
+
+    private final File ledgerFile;
+    private final long persistMinBytes;
+    private final Map<String, Token> tokens = new ConcurrentHashMap<>();
+    private PrintWriter ledgerWriter;
+    private int appendedRecords = 0;
+
+    /**
+     * @param tempStoragePath The directory the ledger file is kept in
+     * @param persistMinBytes Minimum file size whose tokens are written to the ledger file
+     */
+    UploadTokenLedger(String tempStoragePath, long persistMinBytes) throws IOException {
+        this.ledgerFile = new File(tempStoragePath, LEDGER_FILE);
+        this.persistMinBytes = persistMinBytes;
+        load();
+        rewrite();
+    }
+
+    /**
+     * Take the saved upload token for a file to create its media item with.  A token is only handed out once
+     * after being saved, so one the server no longer accepts costs a single create call before the bytes are sent
+     * again.
+     *
+     * @param mediaFile    The file to upload
+     * @param fileSize     The current file size
+     * @param lastModified The current file modification time
+     * @return The upload token, or null if the bytes need to be sent
+     */
+    String take(MediaFile mediaFile, long fileSize, long lastModified) {
+        String path = mediaFile.getCompleteFilename();
+        Token token = tokens.get(path);
+        if (token == null || token.taken) {
+            return null;
+        }
+        if (token.size != fileSize || token.lastModified != lastModified
+                || System.currentTimeMillis() - token.createdMillis >= TOKEN_TTL_MILLIS) {
+            remove(mediaFile);
+            return null;
+        }
+        token.taken = true;
+        log.info("Creating media item for {} from its saved upload token", path);
+        return token.uploadToken;
+    }
+
+    /**
+     * Save the upload token for a file as soon as the server has accepted its bytes
+     */
+    void record(MediaFile mediaFile, long fileSize, long lastModified, String uploadToken) {
+        String path = mediaFile.getCompleteFilename();
+        Token token = new Token(fileSize, lastModified, System.currentTimeMillis(), uploadToken, false);
+        tokens.put(path, token);
+        if (fileSize >= persistMinBytes) {
+            append(toLedgerLine(path, token));
+        }
+    }
+
+    /**
+     * Forget the token for a file once its media item is created, or once the server refused the token
+     */
+    void remove(MediaFile mediaFile) {
+        String path = mediaFile.getCompleteFilename();
+        Token token = tokens.remove(path);
+        if (token != null && token.size >= persistMinBytes) {
+            append(REMOVED + SEPARATOR + path);
+        }
+    }
+
+    @Override
+    public synchronized void close() {
+        if (ledgerWriter != null) {
+            ledgerWriter.close();
+            ledgerWriter = null;
+        }
+    }
+
+    private void load() throws IOException {
+        if (!ledgerFile.exists()) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        try (BufferedReader reader = new BufferedReader(new FileReader(ledgerFile, StandardCharsets.UTF_8))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                String[] fields = line.split(SEPARATOR, 5);
+                if (fields.length == 2 && REMOVED.equals(fields[0])) {
+                    tokens.remove(fields[1]);
+                } else if (fields.length == 5) {
+                    Token token = new Token(Long.parseLong(fields[0]), Long.parseLong(fields[1]), Long.parseLong(fields[2]), fields[3], false);
+                    if (now - token.createdMillis < TOKEN_TTL_MILLIS) {
+                        tokens.put(fields[4], token);
+                    } else {
+                        tokens.remove(fields[4]);
+                    }
+                }
+            }
+        }
+        log.info("Loaded {} saved upload token(s)", tokens.size());
+    }
+
+    private synchronized void append(String line) {
+        try {
+            if (ledgerWriter == null) {
+                ledgerWriter = new PrintWriter(new BufferedWriter(new FileWriter(ledgerFile, StandardCharsets.UTF_8, true)));
+            }
+            ledgerWriter.println(line);
+            ledgerWriter.flush();
+            if (++appendedRecords > Math.max(COMPACT_MIN_RECORDS, COMPACT_RATIO * tokens.size())) {
+                rewrite();
+            }
+        } catch (IOException e) {
+            log.warn("Unable to write upload token ledger {}", ledgerFile, e);
+        }
+    }
+
+    /**
+     * Rewrite the ledger with only the saved tokens still waiting for their media item
+     */
+    private synchronized void rewrite() throws IOException {
+        close();
+        File tmpFile = new File(ledgerFile.getPath() + ".tmp");
+        try (FileOutputStream out = new FileOutputStream(tmpFile);
+             PrintWriter writer = new PrintWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8))) {
+            tokens.forEach((path, token) -> {
+                if (token.size >= persistMinBytes) {
+                    writer.println(toLedgerLine(path, token));
+                }
+            });
+            writer.flush();
+            out.getFD().sync();
+        }
+        Files.move(tmpFile.toPath(), ledgerFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        appendedRecords = 0;
+    }
+
+    private static String toLedgerLine(String path, Token token) {
+        return token.size + SEPARATOR + token.lastModified + SEPARATOR + token.createdMillis + SEPARATOR + token.uploadToken + SEPARATOR + path;
+    }
+
+    @AllArgsConstructor
+    private static class Token {
+        private final long size;
+        private final long lastModified;
+        private final long createdMillis;
+        private final String uploadToken;
+        // Handed out for a create since it was saved
+        private volatile boolean taken;
+    }
+}
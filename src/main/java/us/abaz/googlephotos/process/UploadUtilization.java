@@ -0,0 +1,85 @@
+package us.abaz.googlephotos.process;
+
+import lombok.extern.slf4j.Slf4j;
+import org.apache.commons.io.FileUtils;
+import us.abaz.googlephotos.metrics.UploadMetrics;
+import us.abaz.googlephotos.ratelimit.AdaptiveRateLimiter;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.IntSupplier;
+
+/**
+ * How well the scheduling policy keeps both limits of an upload in use - the upload slots, which bound the
+ * bandwidth in use, and the upload request quota.  Both are sampled once a second over the whole run.
+ */
+@Slf4j
+class UploadUtilization implements AutoCloseable {
+    static final String SLOT_UTILIZATION_GAUGE = "upload_slot_utilization_percent";
+    static final String QUOTA_UTILIZATION_GAUGE = "upload_quota_utilization_percent";
+    private static final long SAMPLE_MILLIS = 1000;
+
+    private final SchedulingPolicy policy;
+    private final AdaptiveRateLimiter uploadRateLimiter;
+    private final IntSupplier activeTransfers;
+    private final UploadMetrics metrics;
+    private final int uploadSlots;
+    private final long startNanos = System.nanoTime();
+    private final long startAcquired;
+    private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "upload-utilization");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private long busySlotSamples = 0;
+    private long slotSamples = 0;
+    private double allowedUploads = 0;
+
+    UploadUtilization(SchedulingPolicy policy,
+                      AdaptiveRateLimiter uploadRateLimiter,
+                      IntSupplier activeTransfers,
+                      UploadMetrics metrics,
+                      int uploadSlots) {
+        this.policy = policy;
+        this.uploadRateLimiter = uploadRateLimiter;
+        this.activeTransfers = activeTransfers;
+        this.metrics = metrics;
+        this.uploadSlots = uploadSlots;
+        this.startAcquired = uploadRateLimiter.getAcquiredCount();
+        metrics.registerGauge(SLOT_UTILIZATION_GAUGE, () -> Math.round(getSlotUtilization() * 100));
+        metrics.registerGauge(QUOTA_UTILIZATION_GAUGE, () -> Math.round(getQuotaUtilization() * 100));
+        sampler.scheduleAtFixedRate(this::sample, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return Fraction of the upload slots that were transferring bytes
+     */
+    synchronized double getSlotUtilization() {
+        return slotSamples > 0 ? (double) busySlotSamples / slotSamples : 0;
+    }
+
+    /**
+     * @return Uploads started as a fraction of those the rate limit allowed
+     */
+    synchronized double getQuotaUtilization() {
+        return allowedUploads > 0 ? Math.min(1.0, (uploadRateLimiter.getAcquiredCount() - startAcquired) / allowedUploads) : 0;
+    }
+
+    @Override
+    public void close() {
+        sampler.shutdownNow();
+        double seconds = Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+        log.info("Scheduling policy {}: upload slots {}% busy, upload quota {}% used, {} MB/s",
+                policy,
+                Math.round(getSlotUtilization() * 100),
+                Math.round(getQuotaUtilization() * 100),
+                String.format("%.2f", metrics.getBytesUploaded() / (double) FileUtils.ONE_MB / seconds));
+    }
+
+    private synchronized void sample() {
+        busySlotSamples += Math.min(uploadSlots, activeTransfers.getAsInt());
+        slotSamples += uploadSlots;
+        allowedUploads += uploadRateLimiter.getRatePerMinute() * SAMPLE_MILLIS / TimeUnit.MINUTES.toMillis(1);
+    }
+}
@@ -0,0 +1,133 @@
+package us.abaz.googlephotos.ratelimit;
+
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Rate limiter for a single endpoint that increases its rate additively while calls succeed and backs off
+ * multiplicatively, with a jittered pause, when the endpoint reports that a quota was exceeded
+ */
+@Slf4j
+@SuppressWarnings("UnstableApiUsage")
+public class AdaptiveRateLimiter {
+    // Number of consecutive successes before the rate is stepped up
+    private static final int SUCCESSES_PER_INCREASE = 20;
+    // Each increase adds this fraction of the initial rate
+    private static final double INCREASE_FRACTION = 0.1;
+    private static final double DECREASE_FACTOR = 0.5;
+    private static final long BASE_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(5);
+    private static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(5);
+    // Quota errors from calls that were already in flight when the rate was cut only count once
+    private static final long DECREASE_QUIET_PERIOD_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+    @Getter
+    private final ApiEndpoint endpoint;
+    private final RateLimiter rateLimiter;
+    private final LongAdder waitNanos = new LongAdder();
+    private final LongAdder acquired = new LongAdder();
+    private int consecutiveSuccesses = 0;
+    private int consecutiveQuotaErrors = 0;
+    private long lastDecreaseNanos;
+    private volatile long pausedUntilNanos = System.nanoTime();
+
+    AdaptiveRateLimiter(ApiEndpoint endpoint) {
+        this.endpoint = endpoint;
+        this.rateLimiter = RateLimiter.create(endpoint.getInitialPerMinute() / 60.0);
+        this.lastDecreaseNanos = System.nanoTime() - DECREASE_QUIET_PERIOD_NANOS;
+    }
+
+    /**
+     * Block until a backoff pause has elapsed and a permit is available
+     *
+     * @return Time spent waiting in nanoseconds
+     */
+    public long acquire() {
+        long start = System.nanoTime();
+        long pausedUntil;
+        while ((pausedUntil = pausedUntilNanos) - System.nanoTime() > 0) {
+            LockSupport.parkNanos(pausedUntil - System.nanoTime());
+        }
+        rateLimiter.acquire();
+        long waited = System.nanoTime() - start;
+        waitNanos.add(waited);
+        acquired.increment();
+        return waited;
+    }
+
+    /**
+     * @return Total time callers have spent waiting in {@link #acquire()}
+     */
+    public long getTotalWaitNanos() {
+        return waitNanos.sum();
+    }
+
+    /**
+     * @return Total permits handed out by {@link #acquire()}
+     */
+    public long getAcquiredCount() {
+        return acquired.sum();
+    }
+
+    /**
+     * Record a successful call
+     */
+    public synchronized void onSuccess() {
+        consecutiveQuotaErrors = 0;
+        if (++consecutiveSuccesses >= SUCCESSES_PER_INCREASE) {
+            consecutiveSuccesses = 0;
+            double current = getRatePerMinute();
+            double increased = Math.min(endpoint.getMaxPerMinute(), current + endpoint.getInitialPerMinute() * INCREASE_FRACTION);
+            if (increased > current) {
+                setRatePerMinute(increased);
+                log.debug("Increased {} rate limit to {}/minute", endpoint.getDisplayName(), String.format("%.1f", increased));
+            }
+        }
+    }
+
+    /**
+     * Record a failed call - only quota failures affect the rate
+     *
+     * @param cause The failure cause
+     */
+    public void onFailure(Throwable cause) {
+        if (QuotaErrors.isQuotaExceeded(cause)) {
+            onQuotaExceeded();
+        }
+    }
+
+    /**
+     * Record a RESOURCE_EXHAUSTED / 429 response - cut the rate and pause all callers for a jittered backoff
+     */
+    public synchronized void onQuotaExceeded() {
+        consecutiveSuccesses = 0;
+        long now = System.nanoTime();
+        if (now - lastDecreaseNanos < DECREASE_QUIET_PERIOD_NANOS) {
+            return;
+        }
+        lastDecreaseNanos = now;
+        consecutiveQuotaErrors++;
+
+        double decreased = Math.max(endpoint.getMinPerMinute(), getRatePerMinute() * DECREASE_FACTOR);
+        setRatePerMinute(decreased);
+
+        long backoffMillis = Math.min(MAX_BACKOFF_MILLIS, BASE_BACKOFF_MILLIS << Math.min(consecutiveQuotaErrors - 1, 16));
+        long jitteredMillis = backoffMillis / 2 + ThreadLocalRandom.current().nextLong(backoffMillis / 2 + 1);
+        pausedUntilNanos = now + TimeUnit.MILLISECONDS.toNanos(jitteredMillis);
+        log.warn("Quota exceeded for {} - rate limit reduced to {}/minute, pausing for {} ms",
+                endpoint.getDisplayName(), String.format("%.1f", decreased), jitteredMillis);
+    }
+
+    public double getRatePerMinute() {
+        return rateLimiter.getRate() * 60.0;
+    }
+
+    private void setRatePerMinute(double ratePerMinute) {
+        rateLimiter.setRate(ratePerMinute / 60.0);
+    }
+}
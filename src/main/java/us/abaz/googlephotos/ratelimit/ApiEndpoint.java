@@ -0,0 +1,23 @@
+package us.abaz.googlephotos.ratelimit;
+
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+
+/**
+ * Google Photos API endpoints that are rate limited independently, with their starting, minimum and maximum
+ * request rates per minute
+ */
+@Getter
+@AllArgsConstructor
+public enum ApiEndpoint {
+    UPLOAD_BYTES("upload", 30, 2, 600),
+    BATCH_CREATE("batchCreate", 10, 1, 60),
+    ALBUM_ADD("albumAdd", 10, 1, 60),
+    CREATE_ALBUM("createAlbum", 10, 1, 30),
+    LIST_ALBUMS("listAlbums", 30, 1, 120);
+
+    private final String displayName;
+    private final double initialPerMinute;
+    private final double minPerMinute;
+    private final double maxPerMinute;
+}
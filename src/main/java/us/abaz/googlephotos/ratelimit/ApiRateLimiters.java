@@ -0,0 +1,61 @@
+package us.abaz.googlephotos.ratelimit;
+
+import java.util.Arrays;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+
+/**
+ * One {@link AdaptiveRateLimiter} per {@link ApiEndpoint}
+ */
+public class ApiRateLimiters {
+    private final Map<ApiEndpoint, AdaptiveRateLimiter> limiters = new EnumMap<>(ApiEndpoint.class);
+
+    public ApiRateLimiters() {
+        Arrays.stream(ApiEndpoint.values()).forEach(endpoint -> limiters.put(endpoint, new AdaptiveRateLimiter(endpoint)));
+    }
+
+    public AdaptiveRateLimiter get(ApiEndpoint endpoint) {
+        return limiters.get(endpoint);
+    }
+
+    /**
+     * Make a synchronous call to an endpoint, waiting on its rate limiter first and feeding the outcome back
+     *
+     * @param endpoint The endpoint being called
+     * @param call     The call to make
+     * @param <T>      The call result type
+     * @return The call result
+     */
+    public <T> T call(ApiEndpoint endpoint, Supplier<T> call) {
+        AdaptiveRateLimiter limiter = limiters.get(endpoint);
+        limiter.acquire();
+        try {
+            T result = call.get();
+            limiter.onSuccess();
+            return result;
+        } catch (RuntimeException e) {
+            limiter.onFailure(e);
+            throw e;
+        }
+    }
+
+    /**
+     * @return The current rate of each endpoint in requests per minute
+     */
+    public Map<ApiEndpoint, Double> getRatesPerMinute() {
+        Map<ApiEndpoint, Double> rates = new EnumMap<>(ApiEndpoint.class);
+        limiters.forEach((endpoint, limiter) -> rates.put(endpoint, limiter.getRatePerMinute()));
+        return rates;
+    }
+
+    /**
+     * @return A human readable summary of the current rates
+     */
+    public String describeRates() {
+        return limiters.values().stream()
+                .map(limiter -> String.format("%s %.1f/min", limiter.getEndpoint().getDisplayName(), limiter.getRatePerMinute()))
+                .collect(Collectors.joining(", "));
+    }
+}
@@ -0,0 +1,150 @@
+package us.abaz.googlephotos.ratelimit;
+
+import com.google.common.util.concurrent.RateLimiter;
+import lombok.extern.slf4j.Slf4j;
+
+import javax.management.ObjectName;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.time.LocalTime;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Token bucket shared by every upload, with a token per byte, so the bandwidth in use is capped independently
+ * of the request rate and the number of parallel uploads.  The cap follows a {@link BandwidthSchedule} and can be
+ * changed at runtime through JMX.
+ */
+@Slf4j
+@SuppressWarnings("UnstableApiUsage")
+public class BandwidthPacer implements BandwidthPacerMXBean, AutoCloseable {
+    private static final String OBJECT_NAME = "us.abaz.googlephotos:type=BandwidthPacer";
+    // The schedule is checked at most this often
+    private static final long SCHEDULE_CHECK_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+    private final BandwidthSchedule schedule;
+    // Created with a placeholder rate - only used while the effective cap is above 0
+    private final RateLimiter rateLimiter = RateLimiter.create(1);
+    private final LongAdder waitNanos = new LongAdder();
+    private volatile long bytesPerSecond;
+    private volatile long effectiveBytesPerSecond = -1;
+    private volatile boolean paused = false;
+    private volatile long nextScheduleCheckNanos = System.nanoTime();
+    private ObjectName objectName;
+
+    /**
+     * @param bytesPerSecond The cap, 0 for unlimited
+     * @param schedule       Share of the cap allowed by time of day
+     */
+    public BandwidthPacer(long bytesPerSecond, BandwidthSchedule schedule) {
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.schedule = schedule;
+        applySchedule();
+        try {
+            objectName = new ObjectName(OBJECT_NAME);
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        } catch (Exception e) {
+            log.warn("Unable to register bandwidth pacer with JMX", e);
+            objectName = null;
+        }
+    }
+
+    /**
+     * Block until the bytes may be sent.  Bytes are taken at most a second's worth at a time, so a change of cap
+     * applies within about a second rather than after a large read charged at the old rate, and a 0% window
+     * holds the bytes until it ends or the cap is changed.
+     */
+    public void acquire(int bytes) throws InterruptedIOException {
+        long start = System.nanoTime();
+        long remaining = bytes;
+        while (remaining > 0) {
+            if (System.nanoTime() - nextScheduleCheckNanos >= 0) {
+                applySchedule();
+            }
+            if (paused) {
+                awaitResume();
+                continue;
+            }
+            long rate = effectiveBytesPerSecond;
+            if (rate <= 0) {
+                break;
+            }
+            int slice = (int) Math.min(remaining, rate);
+            rateLimiter.acquire(slice);
+            remaining -= slice;
+        }
+        if (bytes > 0) {
+            waitNanos.add(System.nanoTime() - start);
+        }
+    }
+
+    @Override
+    public long getBytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    @Override
+    public void setBytesPerSecond(long bytesPerSecond) {
+        log.info("Upload bandwidth cap changed from {} to {} bytes/s", this.bytesPerSecond, bytesPerSecond);
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        applySchedule();
+    }
+
+    @Override
+    public long getEffectiveBytesPerSecond() {
+        return effectiveBytesPerSecond;
+    }
+
+    @Override
+    public boolean isPaused() {
+        return paused;
+    }
+
+    @Override
+    public long getTotalWaitMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(waitNanos.sum());
+    }
+
+    @Override
+    public void close() {
+        if (objectName != null) {
+            try {
+                ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+            } catch (Exception e) {
+                log.debug("Unable to unregister bandwidth pacer from JMX", e);
+            }
+        }
+    }
+
+    private synchronized void applySchedule() {
+        nextScheduleCheckNanos = System.nanoTime() + SCHEDULE_CHECK_NANOS;
+        long effective = Math.round(bytesPerSecond * schedule.getFraction(LocalTime.now()));
+        // A 0% window pauses uploads rather than lifting the cap
+        boolean pause = bytesPerSecond > 0 && effective == 0;
+        if (effective != effectiveBytesPerSecond || pause != paused) {
+            if (effective > 0) {
+                rateLimiter.setRate(effective);
+            }
+            if (effectiveBytesPerSecond >= 0) {
+                log.info("Upload bandwidth cap is now {}", pause ? "paused" : effective > 0 ? effective + " bytes/s" : "unlimited");
+            }
+            effectiveBytesPerSecond = effective;
+            paused = pause;
+            notifyAll();
+        }
+    }
+
+    /**
+     * Wait for the end of a 0% window, checking the schedule as often as it is checked otherwise
+     */
+    private synchronized void awaitResume() throws InterruptedIOException {
+        try {
+            while (paused && System.nanoTime() - nextScheduleCheckNanos < 0) {
+                TimeUnit.NANOSECONDS.timedWait(this, nextScheduleCheckNanos - System.nanoTime());
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while uploads are paused");
+        }
+    }
+}
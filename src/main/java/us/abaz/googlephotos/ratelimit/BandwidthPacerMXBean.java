@@ -0,0 +1,28 @@
+package us.abaz.googlephotos.ratelimit;
+
+/**
+ * JMX control of the upload bandwidth cap
+ */
+public interface BandwidthPacerMXBean {
+    /**
+     * @return The cap before the time of day schedule is applied, 0 for unlimited
+     */
+    long getBytesPerSecond();
+
+    /**
+     * Change the cap without restarting, 0 for unlimited
+     */
+    void setBytesPerSecond(long bytesPerSecond);
+
+    /**
+     * @return The cap in force now the schedule is applied, 0 for unlimited or paused
+     */
+    long getEffectiveBytesPerSecond();
+
+    /**
+     * @return Whether a 0% window of the schedule is holding uploads
+     */
+    boolean isPaused();
+
+    long getTotalWaitMillis();
+}
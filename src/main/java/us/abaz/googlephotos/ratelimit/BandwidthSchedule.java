@@ -0,0 +1,72 @@
+package us.abaz.googlephotos.ratelimit;
+
+import lombok.AllArgsConstructor;
+import org.apache.commons.lang3.StringUtils;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Share of the bandwidth cap allowed by time of day, written as comma separated HH:mm-HH:mm=percent windows -
+ * i.e. 08:00-18:00=20 for a fifth of the cap during office hours.  A window may wrap past midnight, the first
+ * matching window wins and outside of every window the whole cap is allowed.
+ */
+public class BandwidthSchedule {
+    private static final BandwidthSchedule FULL_SPEED = new BandwidthSchedule(Collections.emptyList());
+
+    private final List<Window> windows;
+
+    private BandwidthSchedule(List<Window> windows) {
+        this.windows = windows;
+    }
+
+    /**
+     * @param schedule The schedule, or blank for the whole cap at all times
+     */
+    public static BandwidthSchedule parse(String schedule) {
+        if (StringUtils.isBlank(schedule)) {
+            return FULL_SPEED;
+        }
+        List<Window> windows = new ArrayList<>();
+        for (String window : schedule.split(",")) {
+            String[] timesAndPercent = window.trim().split("=");
+            String[] times = timesAndPercent[0].split("-");
+            if (timesAndPercent.length != 2 || times.length != 2) {
+                throw new IllegalArgumentException("Invalid bandwidth schedule window " + window + " - expected HH:mm-HH:mm=percent");
+            }
+            int percent = Integer.parseInt(timesAndPercent[1].trim());
+            if (percent < 0 || percent > 100) {
+                throw new IllegalArgumentException("Bandwidth schedule percent must be 0 to 100: " + window);
+            }
+            windows.add(new Window(LocalTime.parse(times[0].trim()), LocalTime.parse(times[1].trim()), percent / 100.0));
+        }
+        return new BandwidthSchedule(windows);
+    }
+
+    /**
+     * @return The fraction of the cap allowed at a time of day
+     */
+    public double getFraction(LocalTime time) {
+        for (Window window : windows) {
+            if (window.contains(time)) {
+                return window.fraction;
+            }
+        }
+        return 1.0;
+    }
+
+    @AllArgsConstructor
+    private static class Window {
+        private final LocalTime start;
+        private final LocalTime end;
+        private final double fraction;
+
+        boolean contains(LocalTime time) {
+            return start.isBefore(end)
+                    ? !time.isBefore(start) && time.isBefore(end)
+                    : !time.isBefore(start) || time.isBefore(end);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package us.abaz.googlephotos.ratelimit;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+/**
+ * File whose reads are paced by a {@link BandwidthPacer}.  The upload reads each chunk from the file just before
+ * sending it, so pacing the reads paces the upload - smaller chunks give a smoother rate.
+ */
+public class PacedRandomAccessFile extends RandomAccessFile {
+    private final BandwidthPacer pacer;
+
+    public PacedRandomAccessFile(File file, String mode, BandwidthPacer pacer) throws IOException {
+        super(file, mode);
+        this.pacer = pacer;
+    }
+
+    @Override
+    public int read() throws IOException {
+        int value = super.read();
+        if (value != -1) {
+            pacer.acquire(1);
+        }
+        return value;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int read = super.read(b, off, len);
+        pacer.acquire(read);
+        return read;
+    }
+
+    @Override
+    public int read(byte[] b) throws IOException {
+        return read(b, 0, b.length);
+    }
+}
@@ -0,0 +1,29 @@
+package us.abaz.googlephotos.ratelimit;
+
+import com.google.api.gax.rpc.ApiException;
+import com.google.api.gax.rpc.StatusCode;
+import org.apache.http.client.HttpResponseException;
+
+public class QuotaErrors {
+    private static final int HTTP_TOO_MANY_REQUESTS = 429;
+
+    /**
+     * Check whether a failure, or anything in its cause chain, is a RESOURCE_EXHAUSTED / HTTP 429 quota response
+     *
+     * @param throwable The failure to inspect
+     * @return True if the failure was caused by exceeding a quota
+     */
+    public static boolean isQuotaExceeded(Throwable throwable) {
+        for (Throwable cur = throwable; cur != null; cur = cur.getCause()) {
+            if (cur instanceof ApiException
+                    && ((ApiException) cur).getStatusCode().getCode() == StatusCode.Code.RESOURCE_EXHAUSTED) {
+                return true;
+            }
+            if (cur instanceof HttpResponseException
+                    && ((HttpResponseException) cur).getStatusCode() == HTTP_TOO_MANY_REQUESTS) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
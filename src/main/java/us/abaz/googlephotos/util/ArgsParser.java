@@ -2,9 +2,14 @@ package us.abaz.googlephotos.util;
 
 import lombok.extern.slf4j.Slf4j;
 import org.apache.commons.cli.*;
+import us.abaz.googlephotos.process.SchedulingPolicy;
+import us.abaz.googlephotos.ratelimit.BandwidthSchedule;
 
 @Slf4j
 public class ArgsParser {
+    // Largest chunk in MB whose size in bytes fits an int
+    private static final int MAX_CHUNK_SIZE_MB = Integer.MAX_VALUE / (1024 * 1024);
+
     public static PhotoUploadConfig parseArgs(String[] args) {
         Options options = new Options();
 
@@ -36,6 +41,110 @@ public class ArgsParser {
         credFilePath.setRequired(false);
         options.addOption(parallelUploads);
 
+        Option batchSize = new Option("bs", "batchSize", true, "Number of media items created per batch (max 50)");
+        batchSize.setRequired(false);
+        options.addOption(batchSize);
+
+        Option batchMaxDelay = new Option("bd", "batchMaxDelay", true, "Maximum seconds an upload waits for its batch to fill");
+        batchMaxDelay.setRequired(false);
+        options.addOption(batchMaxDelay);
+
+        Option streamingDiscovery = new Option("sd", "streamingDiscovery", false, "Start uploading while the search root is still being walked");
+        streamingDiscovery.setRequired(false);
+        options.addOption(streamingDiscovery);
+
+        Option discoveryParallelism = new Option("dp", "discoveryParallelism", true, "Number of directories listed concurrently during discovery");
+        discoveryParallelism.setRequired(false);
+        options.addOption(discoveryParallelism);
+
+        Option deduplicateContent = new Option("dd", "deduplicateContent", false, "Skip uploading content that was already uploaded from another path");
+        deduplicateContent.setRequired(false);
+        options.addOption(deduplicateContent);
+
+        Option hashParallelism = new Option("hp", "hashParallelism", true, "Number of files hashed concurrently for deduplication");
+        hashParallelism.setRequired(false);
+        options.addOption(hashParallelism);
+
+        Option uploadChunkSize = new Option("cs", "chunkSize", true, "Upload chunk size in MB");
+        uploadChunkSize.setRequired(false);
+        options.addOption(uploadChunkSize);
+
+        Option resumableThreshold = new Option("rt", "resumableThreshold", true, "Minimum file size in MB for a saved resumable upload session");
+        resumableThreshold.setRequired(false);
+        options.addOption(resumableThreshold);
+
+        Option maxAttempts = new Option("ma", "maxAttempts", true, "Maximum upload attempts for a file before it is dead lettered");
+        maxAttempts.setRequired(false);
+        options.addOption(maxAttempts);
+
+        Option retryDeadLetters = new Option("rd", "retryDeadLetters", false, "Only retry the dead lettered files of earlier runs");
+        retryDeadLetters.setRequired(false);
+        options.addOption(retryDeadLetters);
+
+        Option classifyParallelism = new Option("cp", "classifyParallelism", true, "Number of files classified and matched to albums concurrently");
+        classifyParallelism.setRequired(false);
+        options.addOption(classifyParallelism);
+
+        Option commitParallelism = new Option("cc", "commitParallelism", true, "Number of media item batches created concurrently");
+        commitParallelism.setRequired(false);
+        options.addOption(commitParallelism);
+
+        Option sniffMimeType = new Option("sm", "sniffMimeType", false, "Check the file header for the mime type rather than trusting the file extension");
+        sniffMimeType.setRequired(false);
+        options.addOption(sniffMimeType);
+
+        Option metricsFile = new Option("mf", "metricsFile", true, "Prometheus text file the upload metrics are written to");
+        metricsFile.setRequired(false);
+        options.addOption(metricsFile);
+
+        Option metricsInterval = new Option("mi", "metricsInterval", true, "Seconds between writes of the metrics file");
+        metricsInterval.setRequired(false);
+        options.addOption(metricsInterval);
+
+        Option schedulingPolicy = new Option("sp", "schedulingPolicy", true, "Upload order - FIFO, SIZE_BALANCED, SHORTEST_FIRST or ALBUM_AFFINITY");
+        schedulingPolicy.setRequired(false);
+        options.addOption(schedulingPolicy);
+
+        Option bandwidthLimit = new Option("bw", "bandwidthLimit", true, "Upload bandwidth cap in KB per second, 0 for unlimited");
+        bandwidthLimit.setRequired(false);
+        options.addOption(bandwidthLimit);
+
+        Option bandwidthSchedule = new Option("bws", "bandwidthSchedule", true, "Percent of the bandwidth cap by time of day - i.e. 08:00-18:00=20,18:00-08:00=100");
+        bandwidthSchedule.setRequired(false);
+        options.addOption(bandwidthSchedule);
+
+        Option watch = new Option("w", "watch", false, "Keep running after the initial upload, uploading new files as they appear");
+        watch.setRequired(false);
+        options.addOption(watch);
+
+        Option watchSettle = new Option("ws", "watchSettle", true, "Seconds a new file must go unchanged before it is uploaded in watch mode");
+        watchSettle.setRequired(false);
+        options.addOption(watchSettle);
+
+        Option watchRescan = new Option("wr", "watchRescan", true, "Minutes between rescans for files missed by the watch, 0 for none");
+        watchRescan.setRequired(false);
+        options.addOption(watchRescan);
+
+        Option incrementalScan = new Option("is", "incrementalScan", false, "Only list the directories changed since the last run, using a saved directory manifest");
+        incrementalScan.setRequired(false);
+        options.addOption(incrementalScan);
+
+        Option shard = new Option("sh", "shard", true, "Only upload this process's shard of the files, as i/n - i.e. 2/4 for the second of four processes");
+        shard.setRequired(false);
+        options.addOption(shard);
+
+        Option transcodeLossless = new Option("tl", "transcodeLossless", false, "Upload BMP and TIFF images re-encoded as PNG when that is lossless and smaller");
+        transcodeLossless.setRequired(false);
+        options.addOption(transcodeLossless);
+
+        Option transcodeParallelism = new Option("tp", "transcodeParallelism", true, "Number of images re-encoded as PNG concurrently");
+        transcodeParallelism.setRequired(false);
+        options.addOption(transcodeParallelism);
+
+        Option transcodeCache = new Option("tc", "transcodeCache", true, "Maximum MB of re-encoded images waiting for upload in the temporary storage path");
+        transcodeCache.setRequired(false);
+        options.addOption(transcodeCache);
+
         CommandLineParser parser = new DefaultParser();
         HelpFormatter formatter = new HelpFormatter();
         CommandLine cmd;
@@ -57,7 +166,7 @@ public class ArgsParser {
 
             String credFilePathVal = cmd.getOptionValue("c");
             if (credFilePathVal != null) {
-                builder.tempStoragePath(credFilePathVal);
+                builder.credFilePath(credFilePathVal);
             }
 
             String excludePhotosVal = cmd.getOptionValue("xp");
@@ -80,6 +189,140 @@ public class ArgsParser {
                 builder.maxParallelUploads(Integer.parseInt(parallelUploadsVal));
             }
 
+            String batchSizeVal = cmd.getOptionValue("bs");
+            if (batchSizeVal != null) {
+                builder.batchSize(Integer.parseInt(batchSizeVal));
+            }
+
+            String batchMaxDelayVal = cmd.getOptionValue("bd");
+            if (batchMaxDelayVal != null) {
+                builder.batchMaxDelaySeconds(Integer.parseInt(batchMaxDelayVal));
+            }
+
+            if (cmd.hasOption("sd")) {
+                builder.streamingDiscovery(true);
+            }
+
+            String discoveryParallelismVal = cmd.getOptionValue("dp");
+            if (discoveryParallelismVal != null) {
+                builder.discoveryParallelism(Integer.parseInt(discoveryParallelismVal));
+            }
+
+            if (cmd.hasOption("dd")) {
+                builder.deduplicateContent(true);
+            }
+
+            String hashParallelismVal = cmd.getOptionValue("hp");
+            if (hashParallelismVal != null) {
+                builder.hashParallelism(Integer.parseInt(hashParallelismVal));
+            }
+
+            String uploadChunkSizeVal = cmd.getOptionValue("cs");
+            if (uploadChunkSizeVal != null) {
+                int uploadChunkSizeMb = Integer.parseInt(uploadChunkSizeVal);
+                if (uploadChunkSizeMb < 1 || uploadChunkSizeMb > MAX_CHUNK_SIZE_MB) {
+                    throw new IllegalArgumentException("Invalid chunk size " + uploadChunkSizeVal + " - expected 1 to " + MAX_CHUNK_SIZE_MB + " MB");
+                }
+                builder.uploadChunkSizeMb(uploadChunkSizeMb);
+            }
+
+            String resumableThresholdVal = cmd.getOptionValue("rt");
+            if (resumableThresholdVal != null) {
+                builder.resumableThresholdMb(Integer.parseInt(resumableThresholdVal));
+            }
+
+            String maxAttemptsVal = cmd.getOptionValue("ma");
+            if (maxAttemptsVal != null) {
+                builder.maxAttempts(Integer.parseInt(maxAttemptsVal));
+            }
+
+            if (cmd.hasOption("rd")) {
+                builder.retryDeadLetters(true);
+            }
+
+            String classifyParallelismVal = cmd.getOptionValue("cp");
+            if (classifyParallelismVal != null) {
+                builder.classifyParallelism(Integer.parseInt(classifyParallelismVal));
+            }
+
+            String commitParallelismVal = cmd.getOptionValue("cc");
+            if (commitParallelismVal != null) {
+                builder.commitParallelism(Integer.parseInt(commitParallelismVal));
+            }
+
+            if (cmd.hasOption("sm")) {
+                builder.sniffMimeType(true);
+            }
+
+            String metricsFileVal = cmd.getOptionValue("mf");
+            if (metricsFileVal != null) {
+                builder.metricsFile(metricsFileVal);
+            }
+
+            String metricsIntervalVal = cmd.getOptionValue("mi");
+            if (metricsIntervalVal != null) {
+                builder.metricsIntervalSeconds(Integer.parseInt(metricsIntervalVal));
+            }
+
+            String schedulingPolicyVal = cmd.getOptionValue("sp");
+            if (schedulingPolicyVal != null) {
+                builder.schedulingPolicy(SchedulingPolicy.valueOf(schedulingPolicyVal.toUpperCase()));
+            }
+
+            String bandwidthLimitVal = cmd.getOptionValue("bw");
+            if (bandwidthLimitVal != null) {
+                builder.bandwidthLimitKb(Long.parseLong(bandwidthLimitVal));
+            }
+
+            String bandwidthScheduleVal = cmd.getOptionValue("bws");
+            if (bandwidthScheduleVal != null) {
+                BandwidthSchedule.parse(bandwidthScheduleVal);
+                builder.bandwidthSchedule(bandwidthScheduleVal);
+            }
+
+            if (cmd.hasOption("w")) {
+                builder.watch(true);
+            }
+
+            String watchSettleVal = cmd.getOptionValue("ws");
+            if (watchSettleVal != null) {
+                builder.watchSettleSeconds(Integer.parseInt(watchSettleVal));
+            }
+
+            String watchRescanVal = cmd.getOptionValue("wr");
+            if (watchRescanVal != null) {
+                builder.watchRescanMinutes(Integer.parseInt(watchRescanVal));
+            }
+
+            if (cmd.hasOption("is")) {
+                builder.incrementalScan(true);
+            }
+
+            String shardVal = cmd.getOptionValue("sh");
+            if (shardVal != null) {
+                String[] shardFields = shardVal.split("/");
+                int shardNumber = Integer.parseInt(shardFields[0].trim());
+                int shardCount = shardFields.length == 2 ? Integer.parseInt(shardFields[1].trim()) : 0;
+                if (shardCount < 1 || shardNumber < 1 || shardNumber > shardCount) {
+                    throw new IllegalArgumentException("Invalid shard " + shardVal + " - expected i/n with i from 1 to n");
+                }
+                builder.shardIndex(shardNumber - 1).shardCount(shardCount);
+            }
+
+            if (cmd.hasOption("tl")) {
+                builder.transcodeLossless(true);
+            }
+
+            String transcodeParallelismVal = cmd.getOptionValue("tp");
+            if (transcodeParallelismVal != null) {
+                builder.transcodeParallelism(Integer.parseInt(transcodeParallelismVal));
+            }
+
+            String transcodeCacheVal = cmd.getOptionValue("tc");
+            if (transcodeCacheVal != null) {
+                builder.transcodeCacheMb(Integer.parseInt(transcodeCacheVal));
+            }
+
             return builder.build();
         } catch (Exception e) {
             log.error(e.getMessage());
@@ -0,0 +1,172 @@
+package us.abaz.googlephotos.util;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash set of primitive longs with linear probing - avoids boxing one {@link Long} per entry
+ */
+public class LongHashSet {
+    private static final int MIN_CAPACITY = 16;
+    // Zero marks a free slot, so a zero value is tracked separately
+    private static final long FREE = 0L;
+
+    private long[] slots;
+    private int size;
+    private boolean containsZero;
+
+    public LongHashSet() {
+        this(MIN_CAPACITY);
+    }
+
+    public LongHashSet(int expectedSize) {
+        slots = new long[tableSizeFor(expectedSize)];
+    }
+
+    /**
+     * @return True if the value was not already present
+     */
+    public boolean add(long value) {
+        if (value == FREE) {
+            if (containsZero) {
+                return false;
+            }
+            containsZero = true;
+            size++;
+            return true;
+        }
+        int mask = slots.length - 1;
+        int idx = mix(value) & mask;
+        while (slots[idx] != FREE) {
+            if (slots[idx] == value) {
+                return false;
+            }
+            idx = (idx + 1) & mask;
+        }
+        slots[idx] = value;
+        size++;
+        // Keep the load factor at or below one half
+        if (size * 2 > slots.length) {
+            rehash(slots.length * 2);
+        }
+        return true;
+    }
+
+    /**
+     * @return True if the value was present
+     */
+    public boolean remove(long value) {
+        if (value == FREE) {
+            if (!containsZero) {
+                return false;
+            }
+            containsZero = false;
+            size--;
+            return true;
+        }
+        int mask = slots.length - 1;
+        int idx = mix(value) & mask;
+        while (slots[idx] != value) {
+            if (slots[idx] == FREE) {
+                return false;
+            }
+            idx = (idx + 1) & mask;
+        }
+        // Shift later entries of the probe run back over the gap so lookups never stop short of them
+        int free = idx;
+        int next = (idx + 1) & mask;
+        while (slots[next] != FREE) {
+            int home = mix(slots[next]) & mask;
+            boolean homeAfterFree = free <= next ? free < home && home <= next : free < home || home <= next;
+            if (!homeAfterFree) {
+                slots[free] = slots[next];
+                free = next;
+            }
+            next = (next + 1) & mask;
+        }
+        slots[free] = FREE;
+        size--;
+        return true;
+    }
+
+    public boolean contains(long value) {
+        if (value == FREE) {
+            return containsZero;
+        }
+        int mask = slots.length - 1;
+        int idx = mix(value) & mask;
+        while (slots[idx] != FREE) {
+            if (slots[idx] == value) {
+                return true;
+            }
+            idx = (idx + 1) & mask;
+        }
+        return false;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    /**
+     * Remove every value, releasing a table grown beyond the minimum rather than keeping it allocated
+     */
+    public void clear() {
+        if (slots.length > MIN_CAPACITY) {
+            slots = new long[MIN_CAPACITY];
+        } else {
+            Arrays.fill(slots, FREE);
+        }
+        containsZero = false;
+        size = 0;
+    }
+
+    /**
+     * @return The values in ascending signed order
+     */
+    public long[] toSortedArray() {
+        long[] values = new long[size];
+        int i = 0;
+        if (containsZero) {
+            values[i++] = 0L;
+        }
+        for (long slot : slots) {
+            if (slot != FREE) {
+                values[i++] = slot;
+            }
+        }
+        Arrays.sort(values);
+        return values;
+    }
+
+    private void rehash(int newCapacity) {
+        long[] oldSlots = slots;
+        slots = new long[newCapacity];
+        int mask = newCapacity - 1;
+        for (long value : oldSlots) {
+            if (value != FREE) {
+                int idx = mix(value) & mask;
+                while (slots[idx] != FREE) {
+                    idx = (idx + 1) & mask;
+                }
+                slots[idx] = value;
+            }
+        }
+    }
+
+    private static int mix(long value) {
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    private static int tableSizeFor(int expectedSize) {
+        int capacity = MIN_CAPACITY;
+        while (capacity < expectedSize * 2 && capacity < (1 << 30)) {
+            capacity <<= 1;
+        }
+        return capacity;
+    }
+}
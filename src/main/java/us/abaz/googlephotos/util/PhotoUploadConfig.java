@@ -3,6 +3,7 @@ package us.abaz.googlephotos.util;
 import lombok.Builder;
 import lombok.Value;
 import org.apache.commons.io.FileUtils;
+import us.abaz.googlephotos.process.SchedulingPolicy;
 
 import java.io.File;
 
@@ -22,4 +23,72 @@ public class PhotoUploadConfig {
     String albumNamePrefix = "";
     @Builder.Default
     int maxParallelUploads = 15;
+    @Builder.Default
+    int classifyParallelism = 2;
+    @Builder.Default
+    int commitParallelism = 2;
+    @Builder.Default
+    int batchSize = 50;
+    @Builder.Default
+    int batchMaxDelaySeconds = 30;
+    @Builder.Default
+    boolean streamingDiscovery = false;
+    @Builder.Default
+    int discoveryQueueSize = 10000;
+    @Builder.Default
+    boolean watch = false;
+    @Builder.Default
+    int watchSettleSeconds = 10;
+    @Builder.Default
+    int watchRescanMinutes = 60;
+    @Builder.Default
+    int discoveryParallelism = 1;
+    @Builder.Default
+    boolean incrementalScan = false;
+    @Builder.Default
+    boolean deduplicateContent = false;
+    @Builder.Default
+    int hashParallelism = 4;
+    @Builder.Default
+    int uploadChunkSizeMb = 16;
+    @Builder.Default
+    int resumableThresholdMb = 64;
+    @Builder.Default
+    boolean sniffMimeType = false;
+    @Builder.Default
+    boolean transcodeLossless = false;
+    @Builder.Default
+    int transcodeParallelism = 2;
+    @Builder.Default
+    int transcodeCacheMb = 512;
+    @Builder.Default
+    String metricsFile = "";
+    @Builder.Default
+    int metricsIntervalSeconds = 15;
+    @Builder.Default
+    long bandwidthLimitKb = 0;
+    @Builder.Default
+    String bandwidthSchedule = "";
+    @Builder.Default
+    SchedulingPolicy schedulingPolicy = SchedulingPolicy.FIFO;
+    @Builder.Default
+    int maxAttempts = 5;
+    @Builder.Default
+    boolean retryDeadLetters = false;
+    // Zero based index of the shard of the files this process uploads, of shardCount
+    @Builder.Default
+    int shardIndex = 0;
+    @Builder.Default
+    int shardCount = 1;
+
+    /**
+     * @return Where the processed log and the rest of the run state are kept - a directory of its own per shard
+     * under the temporary storage path when the files are split across processes
+     */
+    public String getStatePath() {
+        if (shardCount <= 1) {
+            return tempStoragePath;
+        }
+        return new File(tempStoragePath, String.format("shard-%d-of-%d", shardIndex + 1, shardCount)).getPath() + File.separator;
+    }
 }
@@ -8,15 +8,28 @@ public class SimpleProgressRenderer {
     private static final String PROGRESS_CHARS = Strings.repeat("=", TOTAL_PROGRESS_CHARS);
     private static final String REMAINING_CHARS = Strings.repeat(" ", TOTAL_PROGRESS_CHARS);
 
-    public static void renderProgress(int current, int total, int inProgress, int errors, String currentMessage) {
-        int progressChars = (int) Math.round((double) current / (double) total) * TOTAL_PROGRESS_CHARS;
+    /**
+     * Render a single progress line
+     *
+     * @param current        Files processed so far
+     * @param total          Total files, or files discovered so far when the total is not yet known
+     * @param totalKnown     Whether discovery has completed
+     * @param inProgress     Uploads in progress
+     * @param errors         Errors so far
+     * @param currentMessage Trailing message
+     */
+    public static void renderProgress(int current, int total, boolean totalKnown, int inProgress, int errors, String currentMessage) {
+        int progressChars = total > 0
+                ? (int) Math.min(TOTAL_PROGRESS_CHARS, Math.round((double) current / (double) total * TOTAL_PROGRESS_CHARS))
+                : 0;
         String errorsMsg = errors > 0 ? String.format(" , %d errors", errors) : StringUtils.EMPTY;
         System.out.print(
-                String.format("\r[%s>%s] %d of %d, %d in progress%s %s",
+                String.format("\r[%s>%s] %d of %d%s, %d in progress%s %s",
                         PROGRESS_CHARS.substring(TOTAL_PROGRESS_CHARS - progressChars),
                         REMAINING_CHARS.substring(progressChars),
                         current,
                         total,
+                        totalKnown ? StringUtils.EMPTY : " discovered so far",
                         inProgress,
                         errorsMsg,
                         currentMessage)